@@ -0,0 +1,137 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+
+import org.bedework.util.xml.XmlEmit;
+import org.bedework.util.xml.tagdefs.WebdavTags;
+import org.bedework.webdav.servlet.common.Utf8XmlEmit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Measures the size and CPU cost of gzipping a typical Depth:1
+ * multistatus at different deflater levels - the trade off behind the
+ * compressLevel init parameter. Run with run-compression-bench.sh.
+ *
+ * <p>Arguments are the member counts to try, default 100 and 1000.
+ */
+public class CompressionBench {
+  private static final int[] levels = {1, 6, 9};
+
+  private static final int warmup = 200;
+
+  private static final int iterations = 500;
+
+  public static void main(final String[] args) throws Throwable {
+    final int[] counts;
+
+    if (args.length == 0) {
+      counts = new int[]{100, 1000};
+    } else {
+      counts = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        counts[i] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.print("members  bytes   ");
+    for (final int level: levels) {
+      System.out.printf("  level %d        ", level);
+    }
+    System.out.println();
+
+    for (final int members: counts) {
+      final byte[] body = multistatus(members);
+
+      System.out.printf("%-8d %-8d", members, body.length);
+
+      for (final int level: levels) {
+        int size = 0;
+
+        for (int i = 0; i < warmup; i++) {
+          size = gzip(body, level);
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          size = gzip(body, level);
+        }
+        final long micros = (System.nanoTime() - start) / iterations / 1000;
+
+        System.out.printf("  %5.1fx %6dus",
+                          (double)body.length / size, micros);
+      }
+
+      System.out.println();
+    }
+  }
+
+  /* href, etag, content type, last-modified and resourcetype per member */
+  private static byte[] multistatus(final int members) throws Throwable {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Utf8XmlEmit xml = new Utf8XmlEmit();
+
+    xml.addNs(new XmlEmit.NameSpace(WebdavTags.namespace, "D"), true);
+    xml.startEmit(out);
+
+    xml.openTag(WebdavTags.multistatus);
+
+    for (int i = 0; i < members; i++) {
+      xml.openTag(WebdavTags.response);
+      xml.property(WebdavTags.href,
+                   "/ucaldav/user/someone/calendar/" + i +
+                           "-" + Long.toHexString(i * 7919L) + ".ics");
+      xml.openTag(WebdavTags.propstat);
+      xml.openTag(WebdavTags.prop);
+      xml.property(WebdavTags.getetag,
+                   "\"" + Long.toHexString(i * 104729L + 1234567) + "\"");
+      xml.property(WebdavTags.getcontenttype,
+                   "text/calendar; charset=utf-8");
+      xml.property(WebdavTags.getlastmodified,
+                   "Sun, 18 Oct 2026 05:" + (10 + (i % 50)) + ":00 GMT");
+      xml.emptyTag(WebdavTags.resourcetype);
+      xml.closeTag(WebdavTags.prop);
+      xml.property(WebdavTags.status, "HTTP/1.1 200 ok");
+      xml.closeTag(WebdavTags.propstat);
+      xml.closeTag(WebdavTags.response);
+    }
+
+    xml.closeTag(WebdavTags.multistatus);
+    xml.flush();
+
+    return out.toByteArray();
+  }
+
+  /* As CompressedResponse does it */
+  private static int gzip(final byte[] body,
+                          final int level) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+
+    try (OutputStream gz = new GZIPOutputStream(out, 8192, true) {
+      {
+        def.setLevel(level);
+      }
+    }) {
+      gz.write(body);
+    }
+
+    return out.size();
+  }
+}
@@ -0,0 +1,314 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+import org.bedework.access.AccessPrincipal;
+import org.bedework.access.Acl.CurrentAccess;
+import org.bedework.util.xml.XmlEmit;
+import org.bedework.util.xml.tagdefs.WebdavTags;
+import org.bedework.webdav.servlet.common.Utf8XmlEmit;
+import org.bedework.webdav.servlet.shared.UrlHandler;
+import org.bedework.webdav.servlet.shared.WdChildCursor;
+import org.bedework.webdav.servlet.shared.WdCollection;
+import org.bedework.webdav.servlet.shared.WdEntity;
+import org.bedework.webdav.servlet.shared.WebdavException;
+import org.bedework.webdav.servlet.shared.WebdavNsNode;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+/** Checks that heap use stays flat while a Depth:1 multistatus for a
+ * very large collection is streamed from a WdChildCursor - the way
+ * PropFindMethod walks children when the prefetcher is off. The same
+ * members are then written from a materialized list, as the default
+ * getChildCursor does, for comparison. Run with
+ * run-bench.sh CursorHeapBench.
+ *
+ * <p>Exits with status 1 if the heap grows by more than the allowed
+ * amount while streaming.
+ *
+ * <p>Arguments are the member count, default 1000000, and the allowed
+ * growth in MB, default 16.
+ */
+public class CursorHeapBench {
+  private static final int samples = 10;
+
+  private static final UrlHandler handler =
+          new UrlHandler("http://example.com", "/ucaldav", false);
+
+  public static void main(final String[] args) throws Throwable {
+    int members = 1000000;
+    long allowedMb = 16;
+
+    if (args.length > 0) {
+      members = Integer.parseInt(args[0]);
+    }
+
+    if (args.length > 1) {
+      allowedMb = Long.parseLong(args[1]);
+    }
+
+    System.out.println("members " + members);
+
+    final long streamed = run("cursor", usedHeap(),
+                              new SyntheticCursor(members), members);
+
+    long materialized = -1;
+    try {
+      final long start = usedHeap();
+      final List<WebdavNsNode> nodes = new ArrayList<>(members);
+      for (int i = 0; i < members; i++) {
+        nodes.add(new BenchNode(i));
+      }
+
+      materialized = run("materialized", start,
+                         WdChildCursor.forCollection(nodes),
+                         members);
+    } catch (final OutOfMemoryError oome) {
+      System.out.println("materialized  out of memory");
+    }
+
+    System.out.printf("growth: cursor %dKB, materialized %dKB%n",
+                      streamed / 1024, materialized / 1024);
+
+    if (streamed > allowedMb * 1024 * 1024) {
+      System.out.println("FAIL: streaming grew the heap by more than " +
+                                 allowedMb + "MB");
+      System.exit(1);
+    }
+
+    System.out.println("OK: heap bounded while streaming");
+  }
+
+  /* Write a response per member and return the largest heap growth
+   * seen over the starting point.
+   */
+  private static long run(final String name,
+                          final long start,
+                          final WdChildCursor cursor,
+                          final int members) throws Throwable {
+    final Utf8XmlEmit xml = new Utf8XmlEmit();
+
+    xml.addNs(WebdavTags.namespace, "D", true);
+    xml.startEmit(new NullOutputStream());
+    xml.openTag(WebdavTags.multistatus);
+
+    long maxGrowth = 0;
+    int count = 0;
+    final int every = Math.max(1, members / samples);
+
+    System.out.printf("%-13s", name);
+
+    try {
+      while (cursor.hasNext()) {
+        final WebdavNsNode node = cursor.next();
+
+        xml.openTag(WebdavTags.response);
+        node.generateHref(xml);
+        xml.openTag(WebdavTags.propstat);
+        xml.openTag(WebdavTags.prop);
+        xml.property(WebdavTags.getetag, node.getEtagValue(true));
+        xml.closeTag(WebdavTags.prop);
+        xml.property(WebdavTags.status, "HTTP/1.1 200 ok");
+        xml.closeTag(WebdavTags.propstat);
+        xml.closeTag(WebdavTags.response);
+
+        count++;
+        if ((count % every) == 0) {
+          final long growth = usedHeap() - start;
+
+          System.out.printf(" %6dKB", growth / 1024);
+          maxGrowth = Math.max(maxGrowth, growth);
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+
+    xml.closeTag(WebdavTags.multistatus);
+    xml.flush();
+
+    System.out.println();
+
+    return maxGrowth;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    final Runtime rt = Runtime.getRuntime();
+
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /* Creates each member when asked for */
+  private static class SyntheticCursor implements WdChildCursor {
+    private final int members;
+
+    private int next;
+
+    SyntheticCursor(final int members) {
+      this.members = members;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < members;
+    }
+
+    @Override
+    public WebdavNsNode next() throws WebdavException {
+      if (!hasNext()) {
+        throw new WebdavException("No more children");
+      }
+
+      return new BenchNode(next++);
+    }
+
+    @Override
+    public void close() {
+      next = members;
+    }
+  }
+
+  private static class NullOutputStream extends OutputStream {
+    @Override
+    public void write(final int b) {
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) {
+    }
+  }
+
+  /* Just enough of a node to write an href and etag */
+  private static class BenchNode extends WebdavNsNode {
+    private final int i;
+
+    BenchNode(final int i) {
+      super(null, handler, null, false,
+            "/user/someone/calendar/" + i + ".ics");
+      this.i = i;
+    }
+
+    @Override
+    public CurrentAccess getCurrentAccess() {
+      return null;
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean trailSlash() {
+      return false;
+    }
+
+    @Override
+    public Collection<? extends WdEntity> getChildren(
+            final Supplier<Object> filterGetter) {
+      return null;
+    }
+
+    @Override
+    public String writeContent(final XmlEmit xml,
+                               final Writer wtr,
+                               final String contentType) {
+      return null;
+    }
+
+    @Override
+    public boolean getContentBinary() {
+      return false;
+    }
+
+    @Override
+    public String getContentLang() {
+      return null;
+    }
+
+    @Override
+    public long getContentLen() {
+      return 0;
+    }
+
+    @Override
+    public String getContentType() {
+      return "text/calendar";
+    }
+
+    @Override
+    public String getCreDate() {
+      return null;
+    }
+
+    @Override
+    public String getDisplayname() {
+      return null;
+    }
+
+    @Override
+    public String getEtagValue(final boolean strong) {
+      return "\"" + Integer.toHexString(i * 104729 + 1234567) + "\"";
+    }
+
+    @Override
+    public String getLastmodDate() {
+      return null;
+    }
+
+    @Override
+    public AccessPrincipal getOwner() {
+      return null;
+    }
+
+    @Override
+    public WdCollection getCollection(final boolean deref) {
+      return null;
+    }
+
+    @Override
+    public WdCollection getImmediateTargetCollection() {
+      return null;
+    }
+
+    @Override
+    public boolean allowsSyncReport() {
+      return false;
+    }
+
+    @Override
+    public boolean getDeleted() {
+      return false;
+    }
+
+    @Override
+    public String getSyncToken() {
+      return null;
+    }
+  }
+}
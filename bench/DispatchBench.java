@@ -0,0 +1,113 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+import org.bedework.webdav.servlet.common.GetMethod;
+import org.bedework.webdav.servlet.common.MethodBase.MethodInfo;
+import org.bedework.webdav.servlet.common.PropFindMethod;
+import org.bedework.webdav.servlet.common.ReportMethod;
+
+import java.text.SimpleDateFormat;
+import java.util.function.Supplier;
+
+/** Compares the cost of creating the method object for a request the way
+ * the servlet used to - Class.newInstance, a SimpleDateFormat per method
+ * and a second PropFindMethod for every REPORT - with the MethodInfo
+ * factories now registered. Run with run-bench.sh DispatchBench.
+ *
+ * <p>Only object creation is measured. init needs a live WebdavNsIntf
+ * and costs the same on both paths apart from the date formatter.
+ *
+ * <p>The argument is the number of iterations, default 2000000.
+ */
+public class DispatchBench {
+  private static final Class[] classes = {
+          GetMethod.class,
+          PropFindMethod.class,
+          ReportMethod.class
+  };
+
+  private static final MethodInfo[] factories = {
+          new MethodInfo(GetMethod::new, false, true),
+          new MethodInfo(PropFindMethod::new, false, true),
+          new MethodInfo(ReportMethod::new, false, true)
+  };
+
+  private static final MethodInfo[] handles = {
+          new MethodInfo(GetMethod.class, false, true),
+          new MethodInfo(PropFindMethod.class, false, true),
+          new MethodInfo(ReportMethod.class, false, true)
+  };
+
+  /* Defeat dead code elimination */
+  private static int sink;
+
+  public static void main(final String[] args) throws Throwable {
+    final int iterations;
+
+    if (args.length == 0) {
+      iterations = 2000000;
+    } else {
+      iterations = Integer.parseInt(args[0]);
+    }
+
+    System.out.println("method     reflection   method handle   supplier");
+
+    for (int i = 0; i < classes.length; i++) {
+      final Class cl = classes[i];
+      final MethodInfo hmi = handles[i];
+      final MethodInfo fmi = factories[i];
+
+      final Supplier<Object> reflection = () -> {
+        try {
+          final Object o = cl.newInstance();
+          sink += new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss ")
+                  .hashCode();
+
+          if (cl == ReportMethod.class) {
+            sink += PropFindMethod.class.newInstance().hashCode();
+          }
+
+          return o;
+        } catch (final Throwable t) {
+          throw new RuntimeException(t);
+        }
+      };
+
+      System.out.printf("%-10s %8dns   %10dns   %7dns%n",
+                        cl.getSimpleName().replace("Method", ""),
+                        time(reflection, iterations),
+                        time(hmi::newMethod, iterations),
+                        time(fmi::newMethod, iterations));
+    }
+  }
+
+  /* Warm up then return mean nanoseconds per call */
+  private static long time(final Supplier<?> s,
+                           final int iterations) {
+    for (int i = 0; i < iterations / 10; i++) {
+      sink += s.get().hashCode();
+    }
+
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      sink += s.get().hashCode();
+    }
+
+    return (System.nanoTime() - start) / iterations;
+  }
+}
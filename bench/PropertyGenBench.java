@@ -0,0 +1,212 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+import org.bedework.util.xml.tagdefs.AppleIcalTags;
+import org.bedework.util.xml.tagdefs.AppleServerTags;
+import org.bedework.util.xml.tagdefs.CaldavTags;
+import org.bedework.util.xml.tagdefs.WebdavTags;
+import org.bedework.webdav.servlet.common.Utf8XmlEmit;
+import org.bedework.webdav.servlet.shared.PropertyRegistry;
+import org.bedework.webdav.servlet.shared.WebdavNsNode;
+import org.bedework.webdav.servlet.shared.WebdavNsNode.PropertyTagEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+/** Compares finding and running the generator for a property through a
+ * PropertyRegistry with the chains of tag.equals tests it replaced. The
+ * properties are those of the WebdavNsNode registry plus a CalDAV-sized
+ * set of subclass properties. Subclass chains were tested before the
+ * base ones so the chain is searched in that order. Run with
+ * run-bench.sh PropertyGenBench.
+ *
+ * <p>Requested names are copies, as they would be after parsing a
+ * request, so equals has to compare the strings. Timings are for one
+ * allprop response and for one response to the usual Depth:1 poll.
+ * The first pair includes writing a small value for each property to a
+ * Utf8XmlEmit, the second is the dispatch alone.
+ *
+ * <p>The argument is the number of iterations, default 200000.
+ */
+public class PropertyGenBench {
+  private static final List<QName> subclassTags = Arrays.asList(
+          CaldavTags.calendarDescription,
+          CaldavTags.calendarTimezone,
+          CaldavTags.supportedCalendarComponentSet,
+          CaldavTags.supportedCalendarData,
+          CaldavTags.maxResourceSize,
+          CaldavTags.minDateTime,
+          CaldavTags.maxDateTime,
+          CaldavTags.maxInstances,
+          CaldavTags.maxAttendeesPerInstance,
+          CaldavTags.calendarHomeSet,
+          CaldavTags.calendarUserAddressSet,
+          CaldavTags.calendarUserType,
+          CaldavTags.scheduleInboxURL,
+          CaldavTags.scheduleOutboxURL,
+          CaldavTags.scheduleDefaultCalendarURL,
+          CaldavTags.scheduleCalendarTransp,
+          CaldavTags.scheduleTag,
+          CaldavTags.timezoneServiceSet,
+          CaldavTags.calendarFreeBusySet,
+          CaldavTags.defaultAlarmVeventDate,
+          CaldavTags.defaultAlarmVeventDatetime,
+          CaldavTags.defaultAlarmVtodoDate,
+          CaldavTags.defaultAlarmVtodoDatetime,
+          AppleServerTags.getctag,
+          AppleServerTags.allowedSharingModes,
+          AppleServerTags.invite,
+          AppleIcalTags.calendarColor,
+          AppleIcalTags.calendarOrder);
+
+  /* The usual Depth:1 poll */
+  private static final List<QName> poll = Arrays.asList(
+          WebdavTags.getetag,
+          WebdavTags.resourcetype,
+          WebdavTags.getcontenttype,
+          AppleServerTags.getctag);
+
+  private static final ByteArrayOutputStream out =
+          new ByteArrayOutputStream();
+
+  private static Utf8XmlEmit xml;
+
+  private static boolean emit;
+
+  /* Defeat dead code elimination */
+  private static int sink;
+
+  public static void main(final String[] args) throws Throwable {
+    final int iterations;
+
+    if (args.length == 0) {
+      iterations = 200000;
+    } else {
+      iterations = Integer.parseInt(args[0]);
+    }
+
+    xml = new Utf8XmlEmit();
+    xml.addNs(WebdavTags.namespace, "D", true);
+    xml.startEmit(out);
+
+    /* Every tag is registered with a generator writing its value */
+    final PropertyRegistry<WebdavNsNode> registry = new PropertyRegistry<>();
+    final List<QName> chain = new ArrayList<>(subclassTags);
+    final List<QName> allProp = new ArrayList<>();
+
+    for (final QName tag: subclassTags) {
+      registry.add(tag, true, (node, t, intf, all) -> write(t));
+      allProp.add(tag);
+    }
+
+    for (final PropertyTagEntry pte:
+            WebdavNsNode.getPropertyRegistry().getTagEntries()) {
+      registry.add(pte.tag, pte.inPropAll, (node, t, intf, all) -> write(t));
+      chain.add(pte.tag);
+
+      if (pte.inPropAll) {
+        allProp.add(pte.tag);
+      }
+    }
+
+    System.out.printf("%d properties, %d in allprop%n",
+                      chain.size(), allProp.size());
+    System.out.println("request    registry   equals chain" +
+                               "   dispatch only: registry   equals chain");
+
+    for (final String name: new String[]{"allprop", "poll"}) {
+      final List<QName> tags = new ArrayList<>();
+      for (final QName tag: name.equals("allprop") ? allProp : poll) {
+        tags.add(new QName(new String(tag.getNamespaceURI()),
+                           new String(tag.getLocalPart())));
+      }
+
+      final Runnable byRegistry = () -> {
+        try {
+          for (final QName tag: tags) {
+            if (registry.isKnown(tag)) {
+              registry.generate(null, tag, null, false);
+            }
+          }
+        } catch (final Throwable t) {
+          throw new RuntimeException(t);
+        }
+      };
+
+      final Runnable byChain = () -> {
+        for (final QName tag: tags) {
+          for (final QName known: chain) {
+            if (tag.equals(known)) {
+              write(known);
+              break;
+            }
+          }
+        }
+      };
+
+      emit = true;
+      final long regOut = time(byRegistry, iterations);
+      final long chainOut = time(byChain, iterations);
+
+      emit = false;
+      final long reg = time(byRegistry, iterations);
+      final long ch = time(byChain, iterations);
+
+      System.out.printf("%-10s %6dns   %9dns   %22dns   %9dns%n",
+                        name, regOut, chainOut, reg, ch);
+    }
+  }
+
+  private static boolean write(final QName tag) {
+    if (!emit) {
+      sink += tag.hashCode();
+      return true;
+    }
+
+    try {
+      xml.property(tag, "v");
+    } catch (final Throwable t) {
+      throw new RuntimeException(t);
+    }
+
+    if (out.size() > 1024 * 1024) {
+      out.reset();
+    }
+
+    return true;
+  }
+
+  /* Warm up then return mean nanoseconds per run */
+  private static long time(final Runnable r,
+                           final int iterations) {
+    for (int i = 0; i < iterations / 10; i++) {
+      r.run();
+    }
+
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      r.run();
+    }
+
+    return (System.nanoTime() - start) / iterations;
+  }
+}
@@ -0,0 +1,19 @@
+#!/bin/sh
+# Build the project, then compile the benchmarks and run one of them.
+#   bench/run-bench.sh <class> [args ...]
+set -e
+cd "$(dirname "$0")/.."
+
+if [ $# -lt 1 ]; then
+  echo "usage: $0 <class> [args ...]" >&2
+  exit 1
+fi
+
+mvn -B -q compile dependency:build-classpath \
+    -Dmdep.outputFile=target/bench-classpath.txt
+
+CP="target/classes:$(cat target/bench-classpath.txt)"
+
+mkdir -p target/bench
+javac -cp "$CP" -d target/bench bench/*.java
+java -cp "target/bench:$CP" "$@"
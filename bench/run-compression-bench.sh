@@ -0,0 +1,4 @@
+#!/bin/sh
+# Build the project, then compile and run CompressionBench against it.
+#   bench/run-compression-bench.sh [members ...]
+exec "$(dirname "$0")/run-bench.sh" CompressionBench "$@"
@@ -0,0 +1,196 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** Controls admission of requests on a per-principal basis.
+ *
+ * <p>Each principal has a gate holding a fixed number of permits. Safe
+ * methods take a single permit so that a number of them may run
+ * concurrently. Mutating methods take all the permits so they run alone,
+ * excluding any other request from the same principal. The semaphore is
+ * fair so a waiting mutating request is not starved by a stream of reads.
+ *
+ * <p>Waiting is bounded. A request which cannot be admitted within the
+ * timeout is rejected with a 503. Gates for principals which have been idle
+ * longer than the idle time are evicted.
+ */
+public class AdmissionController {
+  private final int maxReaders;
+
+  private final long timeoutMillis;
+
+  private final long idleMillis;
+
+  private final ConcurrentHashMap<String, Gate> gates =
+          new ConcurrentHashMap<>();
+
+  private final AtomicLong lastSweep =
+          new AtomicLong(System.currentTimeMillis());
+
+  private static class Gate {
+    final Semaphore permits;
+
+    /* Only updated inside a compute on the map entry */
+    int users;
+
+    volatile long lastUsed;
+
+    Gate(final int permits) {
+      this.permits = new Semaphore(permits, true);
+    }
+  }
+
+  /** Returned by admit and handed back to release
+   */
+  public static class Ticket {
+    private final String key;
+    private final Gate gate;
+    private final int permits;
+
+    Ticket(final String key,
+           final Gate gate,
+           final int permits) {
+      this.key = key;
+      this.gate = gate;
+      this.permits = permits;
+    }
+  }
+
+  /**
+   * @param maxReaders number of safe methods allowed to run concurrently
+   *                   for one principal
+   * @param timeoutMillis maximum time to wait for admission
+   * @param idleMillis gates unused for this long are evicted
+   */
+  public AdmissionController(final int maxReaders,
+                             final long timeoutMillis,
+                             final long idleMillis) {
+    this.maxReaders = Math.max(1, maxReaders);
+    this.timeoutMillis = timeoutMillis;
+    this.idleMillis = idleMillis;
+  }
+
+  /** Wait for admission for the given principal.
+   *
+   * @param principal the requesting principal - null for no control
+   * @param mutating true if the method changes state
+   * @return a ticket to hand to release or null if no control applied
+   * @throws WebdavException 503 if we time out waiting
+   */
+  public Ticket admit(final String principal,
+                      final boolean mutating) throws WebdavException {
+    if (principal == null) {
+      return null;
+    }
+
+    final Gate gate = gates.compute(principal, (k, g) -> {
+      if (g == null) {
+        g = new Gate(maxReaders);
+      }
+
+      g.users++;
+      return g;
+    });
+
+    final int permits;
+    if (mutating) {
+      permits = maxReaders;
+    } else {
+      permits = 1;
+    }
+
+    boolean admitted = false;
+    try {
+      admitted = gate.permits.tryAcquire(permits, timeoutMillis,
+                                         TimeUnit.MILLISECONDS);
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (!admitted) {
+      leave(principal);
+      throw new WebdavException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                "Timed out waiting for admission");
+    }
+
+    return new Ticket(principal, gate, permits);
+  }
+
+  /** Release the permits held by the ticket.
+   *
+   * @param ticket from admit - may be null
+   */
+  public void release(final Ticket ticket) {
+    if (ticket == null) {
+      return;
+    }
+
+    ticket.gate.permits.release(ticket.permits);
+    leave(ticket.key);
+
+    sweep();
+  }
+
+  /**
+   * @return number of principals currently holding a gate
+   */
+  public int size() {
+    return gates.size();
+  }
+
+  private void leave(final String principal) {
+    gates.computeIfPresent(principal, (k, g) -> {
+      g.users--;
+      g.lastUsed = System.currentTimeMillis();
+      return g;
+    });
+  }
+
+  /* Discard idle gates. Only one thread does this at a time and no more
+   * than twice per idle period.
+   */
+  private void sweep() {
+    final long now = System.currentTimeMillis();
+    final long last = lastSweep.get();
+
+    if (((now - last) < (idleMillis / 2)) ||
+        !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+
+    for (final String key: gates.keySet()) {
+      gates.computeIfPresent(key, (k, g) -> {
+        if ((g.users == 0) && ((now - g.lastUsed) > idleMillis)) {
+          return null;
+        }
+
+        return g;
+      });
+    }
+  }
+}
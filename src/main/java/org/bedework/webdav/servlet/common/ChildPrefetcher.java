@@ -0,0 +1,254 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.shared.PropertyProjection;
+import org.bedework.webdav.servlet.shared.WebdavException;
+import org.bedework.webdav.servlet.shared.WebdavNsIntf;
+import org.bedework.webdav.servlet.shared.WebdavNsNode;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Fetches the children of collections on other threads while the
+ * request thread is writing the response for earlier nodes. The response
+ * is still written in order by the request thread - only the calls to
+ * getChildren are made concurrently.
+ *
+ * <p>Each request is limited in the number of fetches in progress and the
+ * number of nodes fetched but not yet written. Beyond those limits the
+ * children are fetched when needed as usual.
+ *
+ * <p>Only used if the namespace interface says getChildren may be called
+ * concurrently.
+ */
+public class ChildPrefetcher {
+  /** Name of counter for fetches started */
+  public static final String submittedCounter = "childPrefetch.submitted";
+
+  /** Name of counter for fetches used */
+  public static final String usedCounter = "childPrefetch.used";
+
+  private final WebdavNsIntf intf;
+
+  private final PropertyProjection projection;
+
+  private final ExecutorService executor;
+
+  private final int maxInFlight;
+
+  private final int maxNodes;
+
+  /* Only touched by the request thread */
+  private final Map<WebdavNsNode, Future<Collection<WebdavNsNode>>> pending =
+          new IdentityHashMap<>();
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /* Waiting for a fetch to be started - only touched by the request thread */
+  private final Deque<WebdavNsNode> queued = new ArrayDeque<>();
+
+  /* Nodes fetched and not yet handed out */
+  private final AtomicInteger heldNodes = new AtomicInteger();
+
+  /* Fetches inside getChildren - close waits for these */
+  private final AtomicInteger running = new AtomicInteger();
+
+  private volatile boolean closed;
+
+  /* WebdavException is not an Exception so can't come out of a Callable */
+  private static class FetchException extends Exception {
+    final WebdavException we;
+
+    FetchException(final WebdavException we) {
+      this.we = we;
+    }
+  }
+
+  /**
+   * @param intf namespace interface
+   * @param projection properties requested
+   * @param executor runs the fetches
+   * @param maxInFlight most fetches in progress for this request
+   * @param maxNodes most nodes fetched and not yet used
+   */
+  public ChildPrefetcher(final WebdavNsIntf intf,
+                         final PropertyProjection projection,
+                         final ExecutorService executor,
+                         final int maxInFlight,
+                         final int maxNodes) {
+    this.intf = intf;
+    this.projection = projection;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    this.maxNodes = maxNodes;
+  }
+
+  /** Fetch the children of the node if it is a collection. The fetch
+   * starts when we are within limits.
+   *
+   * @param node to fetch for
+   * @throws WebdavException on error
+   */
+  public void prefetch(final WebdavNsNode node) throws WebdavException {
+    if (!node.isCollection() || pending.containsKey(node)) {
+      return;
+    }
+
+    queued.add(node);
+    submitQueued();
+  }
+
+  /** Start fetching for each of the nodes as far as the limits allow.
+   *
+   * @param nodes to fetch for
+   * @throws WebdavException on error
+   */
+  public void prefetch(final Collection<WebdavNsNode> nodes) throws WebdavException {
+    for (final WebdavNsNode node: nodes) {
+      prefetch(node);
+    }
+  }
+
+  /**
+   * @param node collection
+   * @return children - fetched earlier or now
+   * @throws WebdavException on error
+   */
+  public Collection<WebdavNsNode> getChildren(final WebdavNsNode node) throws WebdavException {
+    queued.remove(node);
+
+    final Collection<WebdavNsNode> ch = waitFor(node);
+
+    submitQueued();
+
+    return ch;
+  }
+
+  /** Cancel anything not started and wait for running fetches to finish.
+   * Running fetches are not interrupted as they may be using the
+   * request's backend session, which is still needed after this.
+   */
+  public void close() {
+    closed = true;
+    queued.clear();
+
+    for (final Future<Collection<WebdavNsNode>> f: pending.values()) {
+      f.cancel(false);
+    }
+
+    pending.clear();
+
+    synchronized (running) {
+      while (running.get() > 0) {
+        try {
+          running.wait();
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void submitQueued() {
+    while (!queued.isEmpty() &&
+            (inFlight.get() < maxInFlight) &&
+            (heldNodes.get() < maxNodes)) {
+      submit(queued.poll());
+    }
+  }
+
+  private void submit(final WebdavNsNode node) {
+    inFlight.incrementAndGet();
+
+    try {
+      pending.put(node, executor.submit(() -> {
+        running.incrementAndGet();
+
+        try {
+          if (closed) {
+            return Collections.<WebdavNsNode>emptyList();
+          }
+
+          final Collection<WebdavNsNode> ch =
+                  intf.getChildren(node, null, projection);
+
+          heldNodes.addAndGet(ch.size());
+
+          return ch;
+        } catch (final WebdavException we) {
+          throw new FetchException(we);
+        } finally {
+          inFlight.decrementAndGet();
+
+          synchronized (running) {
+            running.decrementAndGet();
+            running.notifyAll();
+          }
+        }
+      }));
+
+      WebdavStats.inc(submittedCounter);
+    } catch (final RejectedExecutionException ree) {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  private Collection<WebdavNsNode> waitFor(final WebdavNsNode node) throws WebdavException {
+    final Future<Collection<WebdavNsNode>> f = pending.remove(node);
+
+    if (f == null) {
+      return intf.getChildren(node, null, projection);
+    }
+
+    try {
+      final Collection<WebdavNsNode> ch = f.get();
+
+      heldNodes.addAndGet(-ch.size());
+      WebdavStats.inc(usedCounter);
+
+      return ch;
+    } catch (final ExecutionException ee) {
+      final Throwable t = ee.getCause();
+
+      if (t instanceof FetchException) {
+        throw ((FetchException)t).we;
+      }
+
+      throw new WebdavException(t);
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new WebdavException(ie);
+    }
+  }
+}
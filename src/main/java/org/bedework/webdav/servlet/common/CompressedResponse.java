@@ -0,0 +1,500 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/** Wraps a response to gzip the content when the client accepts it.
+ *
+ * <p>Output is held until we have seen minSize bytes. If the response
+ * finishes before then, or the content is of a type which is already
+ * compressed, or the content encoding was set by the application, it is
+ * sent as is. Flushes before that point are ignored.
+ *
+ * <p>Responses with a strong ETag are also sent as is. A strong validator
+ * must differ for each content coding, and clients compare the ETag from
+ * GET with getetag and use it in If-Match, so we can't change it.
+ *
+ * <p>finish must be called when the method is complete.
+ */
+public class CompressedResponse extends HttpServletResponseWrapper {
+  /** Name of counter for compressed responses */
+  public static final String compressedCounter = "responseCompression.compressed";
+
+  /** Name of counter for responses sent as is */
+  public static final String plainCounter = "responseCompression.plain";
+
+  /** Name of counter for bytes before compression */
+  public static final String bytesInCounter = "responseCompression.bytesIn";
+
+  /** Name of counter for bytes after compression */
+  public static final String bytesOutCounter = "responseCompression.bytesOut";
+
+  /** Default minimum size to compress */
+  public static final int defaultMinSize = 1024;
+
+  /* Content types which are already compressed */
+  private static final String[] compressedTypes = {
+          "image/",
+          "audio/",
+          "video/",
+          "application/zip",
+          "application/gzip",
+          "application/x-gzip",
+          "application/x-compress",
+          "application/x-bzip2",
+          "application/x-7z-compressed",
+          "application/x-rar-compressed",
+          "application/octet-stream",
+  };
+
+  private final int minSize;
+
+  private final int level;
+
+  private CompressingStream stream;
+
+  private PrintWriter writer;
+
+  private int contentLength = -1;
+
+  private boolean appEncoded;
+
+  private boolean strongEtag;
+
+  private boolean aborted;
+
+  /* Counts bytes after compression */
+  private static class CountingStream extends OutputStream {
+    private final OutputStream out;
+
+    long count;
+
+    CountingStream(final OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+  }
+
+  private class CompressingStream extends ServletOutputStream {
+    private ByteArrayOutputStream held =
+            new ByteArrayOutputStream(minSize);
+
+    private OutputStream out;
+
+    private CountingStream counted;
+
+    private long bytesIn;
+
+    private boolean finished;
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (out == null) {
+        held.write(b);
+        checkHeld();
+        return;
+      }
+
+      out.write(b);
+      bytesIn++;
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+      if (out == null) {
+        held.write(b, off, len);
+        checkHeld();
+        return;
+      }
+
+      out.write(b, off, len);
+      bytesIn += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    void resetHeld() {
+      if (out == null) {
+        held.reset();
+      }
+    }
+
+    void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+
+      finished = true;
+
+      if (out == null) {
+        if ((contentLength < 0) && (held.size() > 0)) {
+          contentLength = held.size();
+        }
+
+        start(false);
+      }
+
+      if (counted == null) {
+        WebdavStats.inc(plainCounter);
+        out.flush();
+        return;
+      }
+
+      ((GZIPOutputStream)out).finish();
+      out.flush();
+
+      WebdavStats.inc(compressedCounter);
+      WebdavStats.add(bytesInCounter, bytesIn);
+      WebdavStats.add(bytesOutCounter, counted.count);
+    }
+
+    private void checkHeld() throws IOException {
+      if (held.size() >= minSize) {
+        start(compressible());
+      }
+    }
+
+    private void start(final boolean compress) throws IOException {
+      if (compress) {
+        CompressedResponse.super.setHeader("Content-Encoding", "gzip");
+        counted = new CountingStream(CompressedResponse.super.getOutputStream());
+        out = new GZIPOutputStream(counted, 8192, true) {
+          {
+            def.setLevel(level);
+          }
+        };
+      } else {
+        if (contentLength >= 0) {
+          CompressedResponse.super.setContentLength(contentLength);
+        }
+        out = CompressedResponse.super.getOutputStream();
+      }
+
+      bytesIn = held.size();
+      held.writeTo(out);
+      held = null;
+    }
+  }
+
+  /**
+   * @param resp to wrap
+   * @param minSize smallest content we compress
+   * @param level deflater compression level
+   */
+  public CompressedResponse(final HttpServletResponse resp,
+                            final int minSize,
+                            final int level) {
+    super(resp);
+    this.minSize = Math.max(minSize, 1);
+    this.level = level;
+  }
+
+  /**
+   * @param req http request
+   * @return true if the client accepts gzip
+   */
+  public static boolean acceptsGzip(final HttpServletRequest req) {
+    final Enumeration<?> values = req.getHeaders("Accept-Encoding");
+
+    if (values == null) {
+      return false;
+    }
+
+    while (values.hasMoreElements()) {
+      for (final String coding: ((String)values.nextElement()).split(",")) {
+        final String[] parts = coding.split(";");
+        final String name = parts[0].trim();
+
+        if (!"gzip".equalsIgnoreCase(name) &&
+                !"x-gzip".equalsIgnoreCase(name) &&
+                !"*".equals(name)) {
+          continue;
+        }
+
+        if (!zeroQ(parts)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @param contentType may be null
+   * @return true if this type is worth compressing
+   */
+  public static boolean isCompressible(final String contentType) {
+    if (contentType == null) {
+      return true;
+    }
+
+    final String ct = contentType.trim().toLowerCase();
+
+    for (final String s: compressedTypes) {
+      if (ct.startsWith(s)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /** Complete the response - sending any held content.
+   *
+   * @throws IOException on error
+   */
+  public void finish() throws IOException {
+    if (aborted) {
+      return;
+    }
+
+    if (writer != null) {
+      writer.flush();
+    }
+
+    if (stream != null) {
+      stream.finish();
+      return;
+    }
+
+    if (contentLength >= 0) {
+      super.setContentLength(contentLength);
+    }
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (writer != null) {
+      throw new IllegalStateException("getWriter already called");
+    }
+
+    return getStream();
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer != null) {
+      return writer;
+    }
+
+    if (stream != null) {
+      throw new IllegalStateException("getOutputStream already called");
+    }
+
+    writer = new PrintWriter(new OutputStreamWriter(getStream(),
+                                                    getCharacterEncoding()));
+
+    return writer;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    } else if (stream != null) {
+      stream.flush();
+    }
+  }
+
+  @Override
+  public void setContentLength(final int len) {
+    if (decided()) {
+      super.setContentLength(len);
+      return;
+    }
+
+    contentLength = len;
+  }
+
+  @Override
+  public void setHeader(final String name,
+                        final String value) {
+    if (!header(name, value)) {
+      super.setHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addHeader(final String name,
+                        final String value) {
+    if (!header(name, value)) {
+      super.addHeader(name, value);
+    }
+  }
+
+  @Override
+  public void setIntHeader(final String name,
+                           final int value) {
+    if (!header(name, String.valueOf(value))) {
+      super.setIntHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addIntHeader(final String name,
+                           final int value) {
+    if (!header(name, String.valueOf(value))) {
+      super.addIntHeader(name, value);
+    }
+  }
+
+  @Override
+  public void resetBuffer() {
+    if (stream != null) {
+      stream.resetHeld();
+    }
+
+    super.resetBuffer();
+  }
+
+  @Override
+  public void reset() {
+    if (stream != null) {
+      stream.resetHeld();
+    }
+
+    contentLength = -1;
+    appEncoded = false;
+    strongEtag = false;
+    super.reset();
+  }
+
+  @Override
+  public void sendError(final int sc) throws IOException {
+    aborted = true;
+    super.sendError(sc);
+  }
+
+  @Override
+  public void sendError(final int sc,
+                        final String msg) throws IOException {
+    aborted = true;
+    super.sendError(sc, msg);
+  }
+
+  @Override
+  public void sendRedirect(final String location) throws IOException {
+    aborted = true;
+    super.sendRedirect(location);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private CompressingStream getStream() {
+    if (stream == null) {
+      stream = new CompressingStream();
+    }
+
+    return stream;
+  }
+
+  private boolean decided() {
+    return (stream != null) && (stream.out != null);
+  }
+
+  private boolean compressible() {
+    return !appEncoded && !strongEtag &&
+            ((contentLength < 0) || (contentLength >= minSize)) &&
+            isCompressible(getContentType());
+  }
+
+  /* Returns true if we handled it */
+  private boolean header(final String name,
+                         final String value) {
+    if ("Content-Encoding".equalsIgnoreCase(name)) {
+      appEncoded = true;
+      return false;
+    }
+
+    if ("ETag".equalsIgnoreCase(name)) {
+      strongEtag = (value != null) && !value.trim().startsWith("W/");
+      return false;
+    }
+
+    if (!"Content-Length".equalsIgnoreCase(name) || decided()) {
+      return false;
+    }
+
+    try {
+      contentLength = Integer.parseInt(value.trim());
+    } catch (final Throwable t) {
+      return false;
+    }
+
+    return true;
+  }
+
+  private static boolean zeroQ(final String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      final String p = parts[i].trim();
+
+      if (!p.startsWith("q=")) {
+        continue;
+      }
+
+      try {
+        return Float.parseFloat(p.substring(2).trim()) == 0;
+      } catch (final NumberFormatException nfe) {
+        return false;
+      }
+    }
+
+    return false;
+  }
+}
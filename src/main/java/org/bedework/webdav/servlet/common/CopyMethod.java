@@ -56,7 +56,9 @@ public class CopyMethod extends MethodBase {
     }
 
     try {
-      String dest = req.getHeader("Destination");
+      final WebdavRequestContext rc = getRequestContext(req);
+
+      String dest = rc.getDestination();
       if (dest == null) {
         if (debug) {
           debug("No Destination");
@@ -64,25 +66,14 @@ public class CopyMethod extends MethodBase {
         throw new WebdavNotFound("No Destination");
       }
 
-      int depth = Headers.depth(req);
+      int depth = rc.getDepth(Headers.depthNone);
       /*
       if (depth == Headers.depthNone) {
         depth = Headers.depthInfinity;
       }
       */
 
-      String ow = req.getHeader("Overwrite");
-      boolean overwrite;
-      if (ow == null) {
-        overwrite = true;
-      } else if ("T".equals(ow)) {
-        overwrite = true;
-      } else if ("F".equals(ow)) {
-        overwrite = false;
-      } else {
-        resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        return;
-      }
+      boolean overwrite = rc.getOverwrite();
 
       WebdavNsIntf intf = getNsIntf();
       WebdavNsNode from = intf.getNode(getResourceUri(req),
@@ -0,0 +1,365 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/** Wraps a request with a gzip or deflate content encoding so that the
+ * body is decompressed as it is read. The content length and encoding
+ * headers are hidden as they no longer describe what the application sees.
+ *
+ * <p>The ratio of decompressed to compressed bytes is limited to guard
+ * against small bodies which expand enormously.
+ */
+public class DecompressedRequest extends HttpServletRequestWrapper {
+  /** Name of counter for decompressed requests */
+  public static final String requestsCounter = "requestDecompression.count";
+
+  /** Name of counter for compressed bytes read */
+  public static final String bytesInCounter = "requestDecompression.bytesIn";
+
+  /** Name of counter for decompressed bytes delivered */
+  public static final String bytesOutCounter = "requestDecompression.bytesOut";
+
+  /** Name of counter for rejected requests */
+  public static final String rejectedCounter = "requestDecompression.rejected";
+
+  /** Default maximum ratio of decompressed to compressed size */
+  public static final int defaultMaxRatio = 100;
+
+  /* We allow this much whatever the ratio */
+  private static final long ratioFloor = 64 * 1024;
+
+  private final boolean gzip;
+
+  private final int maxRatio;
+
+  private DecompressingStream stream;
+
+  private BufferedReader reader;
+
+  /** Thrown by the stream when the ratio is exceeded */
+  public static class LimitException extends IOException {
+    LimitException(final String msg) {
+      super(msg);
+    }
+  }
+
+  /* Counts compressed bytes */
+  private static class CountingStream extends InputStream {
+    private final InputStream in;
+
+    long count;
+
+    CountingStream(final InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = in.read();
+
+      if (b >= 0) {
+        count++;
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b,
+                    final int off,
+                    final int len) throws IOException {
+      final int ct = in.read(b, off, len);
+
+      if (ct > 0) {
+        count += ct;
+      }
+
+      return ct;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private class DecompressingStream extends ServletInputStream {
+    private final CountingStream counted;
+
+    private InputStream in;
+
+    private long bytesOut;
+
+    private boolean done;
+
+    DecompressingStream(final InputStream raw) {
+      counted = new CountingStream(raw);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+
+      if (read(b, 0, 1) < 0) {
+        return -1;
+      }
+
+      return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b,
+                    final int off,
+                    final int len) throws IOException {
+      if (done) {
+        return -1;
+      }
+
+      if (in == null) {
+        in = open();
+      }
+
+      final int ct = in.read(b, off, len);
+
+      if (ct < 0) {
+        end();
+        return ct;
+      }
+
+      bytesOut += ct;
+
+      if ((bytesOut > ratioFloor) &&
+              (bytesOut > counted.count * maxRatio)) {
+        end();
+        WebdavStats.inc(rejectedCounter);
+        throw new LimitException("Decompressed request body too large");
+      }
+
+      return ct;
+    }
+
+    @Override
+    public void close() throws IOException {
+      end();
+      counted.close();
+    }
+
+    private InputStream open() throws IOException {
+      if (gzip) {
+        return new GZIPInputStream(counted);
+      }
+
+      /* Deflate should be zlib wrapped but some clients send it raw */
+      final PushbackInputStream pin = new PushbackInputStream(counted, 2);
+      final byte[] hdr = new byte[2];
+      int ct = 0;
+
+      while (ct < 2) {
+        final int n = pin.read(hdr, ct, 2 - ct);
+
+        if (n < 0) {
+          break;
+        }
+
+        ct += n;
+      }
+
+      if (ct > 0) {
+        pin.unread(hdr, 0, ct);
+      }
+
+      final boolean zlib = (ct == 2) &&
+              ((hdr[0] & 0x0f) == 8) &&
+              ((((hdr[0] & 0xff) << 8) | (hdr[1] & 0xff)) % 31 == 0);
+
+      return new InflaterInputStream(pin, new Inflater(!zlib));
+    }
+
+    private void end() {
+      if (done) {
+        return;
+      }
+
+      done = true;
+      WebdavStats.inc(requestsCounter);
+      WebdavStats.add(bytesInCounter, counted.count);
+      WebdavStats.add(bytesOutCounter, bytesOut);
+    }
+  }
+
+  /**
+   * @param req to wrap
+   * @param gzip true for gzip, false for deflate
+   * @param maxRatio largest ratio of decompressed to compressed bytes
+   */
+  public DecompressedRequest(final HttpServletRequest req,
+                             final boolean gzip,
+                             final int maxRatio) {
+    super(req);
+    this.gzip = gzip;
+    this.maxRatio = maxRatio;
+  }
+
+  /** Wrap the request if it has a content encoding we handle.
+   *
+   * @param req http request
+   * @param maxRatio largest ratio of decompressed to compressed bytes
+   * @return wrapped or original request
+   * @throws WebdavException 415 for an encoding we don't handle
+   */
+  public static HttpServletRequest wrap(final HttpServletRequest req,
+                                        final int maxRatio) throws WebdavException {
+    final String enc = req.getHeader("Content-Encoding");
+
+    if (enc == null) {
+      return req;
+    }
+
+    final String e = enc.trim().toLowerCase();
+
+    if ((e.length() == 0) || e.equals("identity")) {
+      return req;
+    }
+
+    if (e.equals("gzip") || e.equals("x-gzip")) {
+      return new DecompressedRequest(req, true, maxRatio);
+    }
+
+    if (e.equals("deflate")) {
+      return new DecompressedRequest(req, false, maxRatio);
+    }
+
+    throw new WebdavException(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                              "Unsupported content encoding: " + enc);
+  }
+
+  /**
+   * @param t from processing a request
+   * @return true if the decompression limit was exceeded
+   */
+  public static boolean isLimitExceeded(final Throwable t) {
+    Throwable c = t;
+
+    while (c != null) {
+      if (c instanceof LimitException) {
+        return true;
+      }
+
+      if (c.getCause() == c) {
+        break;
+      }
+
+      c = c.getCause();
+    }
+
+    return false;
+  }
+
+  @Override
+  public ServletInputStream getInputStream() throws IOException {
+    if (reader != null) {
+      throw new IllegalStateException("getReader already called");
+    }
+
+    return getStream();
+  }
+
+  @Override
+  public BufferedReader getReader() throws IOException {
+    if (reader != null) {
+      return reader;
+    }
+
+    if (stream != null) {
+      throw new IllegalStateException("getInputStream already called");
+    }
+
+    String charset = getCharacterEncoding();
+    if (charset == null) {
+      charset = "ISO-8859-1";
+    }
+
+    reader = new BufferedReader(new InputStreamReader(getStream(), charset));
+
+    return reader;
+  }
+
+  @Override
+  public int getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public String getHeader(final String name) {
+    if (hidden(name)) {
+      return null;
+    }
+
+    return super.getHeader(name);
+  }
+
+  @Override
+  public Enumeration getHeaders(final String name) {
+    if (hidden(name)) {
+      return Collections.enumeration(Collections.emptyList());
+    }
+
+    return super.getHeaders(name);
+  }
+
+  @Override
+  public int getIntHeader(final String name) {
+    if (hidden(name)) {
+      return -1;
+    }
+
+    return super.getIntHeader(name);
+  }
+
+  private DecompressingStream getStream() throws IOException {
+    if (stream == null) {
+      stream = new DecompressingStream(super.getInputStream());
+    }
+
+    return stream;
+  }
+
+  private static boolean hidden(final String name) {
+    return "Content-Encoding".equalsIgnoreCase(name) ||
+            "Content-Length".equalsIgnoreCase(name);
+  }
+}
@@ -45,7 +45,7 @@ public class DeleteMethod extends MethodBase {
     try {
       WebdavNsIntf intf = getNsIntf();
 
-      Headers.IfHeaders ifHeaders = Headers.processIfHeaders(req);
+      Headers.IfHeaders ifHeaders = getRequestContext(req).getIfHeaders();
       if ((ifHeaders.ifHeader != null) &&
           !intf.syncTokenMatch(ifHeaders.ifHeader)) {
         intf.rollback();
@@ -0,0 +1,113 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+/** Decides when a flush requested while a multistatus response is being
+ * streamed actually goes to the client. Methods ask for a flush after each
+ * response element. Flushing every time means many small writes for a
+ * large PROPFIND or REPORT.
+ *
+ * <p>A flush is done when any of the enabled watermarks is reached - bytes
+ * written, flush requests or time since the last flush. If none are
+ * enabled every request is honoured. The first request may always be
+ * honoured to get the first bytes to the client quickly.
+ *
+ * <p>A flush at the end of the document is always done.
+ */
+public class FlushPolicy {
+  /** Name of counter for flushes done */
+  public static final String flushesCounter = "responseFlush.count";
+
+  /** Name of counter for bytes flushed */
+  public static final String bytesCounter = "responseFlush.bytes";
+
+  /** Name of counter for flush requests skipped */
+  public static final String skippedCounter = "responseFlush.skipped";
+
+  /** Default byte watermark */
+  public static final int defaultMaxBytes = 32 * 1024;
+
+  private static final FlushPolicy always =
+          new FlushPolicy(0, 0, 0, false);
+
+  private static final FlushPolicy defaultPolicy =
+          new FlushPolicy(defaultMaxBytes, 0, 0, true);
+
+  private final int maxBytes;
+
+  private final int maxElements;
+
+  private final int maxMillis;
+
+  private final boolean firstEarly;
+
+  /**
+   * @param maxBytes flush after this many bytes - 0 to disable
+   * @param maxElements flush after this many requests - 0 to disable
+   * @param maxMillis flush after this long - 0 to disable
+   * @param firstEarly true to honour the first request
+   */
+  public FlushPolicy(final int maxBytes,
+                     final int maxElements,
+                     final int maxMillis,
+                     final boolean firstEarly) {
+    this.maxBytes = maxBytes;
+    this.maxElements = maxElements;
+    this.maxMillis = maxMillis;
+    this.firstEarly = firstEarly;
+  }
+
+  /**
+   * @return policy which honours every request
+   */
+  public static FlushPolicy getAlways() {
+    return always;
+  }
+
+  /**
+   * @return the default policy
+   */
+  public static FlushPolicy getDefault() {
+    return defaultPolicy;
+  }
+
+  /**
+   * @param bytes written since the last flush
+   * @param elements flush requests since the last flush including this one
+   * @param millis since the last flush
+   * @param flushed true if we have flushed already
+   * @return true to flush
+   */
+  public boolean shouldFlush(final long bytes,
+                             final int elements,
+                             final long millis,
+                             final boolean flushed) {
+    if (firstEarly && !flushed) {
+      return true;
+    }
+
+    if ((maxBytes <= 0) && (maxElements <= 0) && (maxMillis <= 0)) {
+      return true;
+    }
+
+    return ((maxBytes > 0) && (bytes >= maxBytes)) ||
+            ((maxElements > 0) && (elements >= maxElements)) ||
+            ((maxMillis > 0) && (millis >= maxMillis));
+  }
+}
@@ -18,7 +18,6 @@
 */
 package org.bedework.webdav.servlet.common;
 
-import org.bedework.webdav.servlet.shared.WebdavBadRequest;
 import org.bedework.webdav.servlet.shared.WebdavException;
 
 import java.util.ArrayList;
@@ -57,25 +56,7 @@ public class Headers {
    */
   public static int depth(final HttpServletRequest req,
                           final int def) throws WebdavException {
-    String depthStr = req.getHeader("Depth");
-
-    if (depthStr == null) {
-      return def;
-    }
-
-    if (depthStr.equals("infinity")) {
-      return depthInfinity;
-    }
-
-    if (depthStr.equals("0")) {
-      return 0;
-    }
-
-    if (depthStr.equals("1")) {
-      return 1;
-    }
-
-    throw new WebdavBadRequest();
+    return WebdavRequestContext.get(req).getDepth(def);
   }
 
   /**
@@ -84,34 +65,7 @@ public class Headers {
    *              with "return-minimal" or "return=minimal"
    */
   public static boolean brief(final HttpServletRequest req) {
-    String b = req.getHeader("Brief");
-
-    if (b != null) {
-      return b.equalsIgnoreCase("T");
-    }
-
-    b = req.getHeader("Prefer");
-
-    if (b == null) {
-      return false;
-    }
-
-    String[] bels = b.split(",");
-
-    for (String bel: bels) {
-      String tr = bel.trim();
-
-      // Previous form in draft
-      if ("return-minimal".equalsIgnoreCase(tr)) {
-        return true;
-      }
-
-      if (preferKeyEquals(tr, "return", "minimal")) {
-        return true;
-      }
-    }
-
-    return false;
+    return WebdavRequestContext.get(req).getBrief();
   }
 
   /**
@@ -120,51 +74,15 @@ public class Headers {
    *              with "return-representation" or "return=representation"
    */
   public static boolean returnRepresentation(final HttpServletRequest req) {
-    String b = req.getHeader("Prefer");
-
-    if (b == null) {
-      return false;
-    }
-
-    String[] bels = b.split(",");
-
-    for (String bel: bels) {
-      String tr = bel.trim();
-
-      // Previous form in draft
-      if ("return-representation".equalsIgnoreCase(tr)) {
-        return true;
-      }
-
-      if (preferKeyEquals(tr, "return", "representation")) {
-        return true;
-      }
-    }
-
-    return false;
+    return WebdavRequestContext.get(req).getReturnRepresentation();
   }
 
-  private static boolean preferKeyEquals(final String unparsed,
-                                         final String key,
-                                         final String val) {
-    if (unparsed.indexOf("=") < 0) {
-      return false;
-    }
-
-    String[] sp = unparsed.split("=");
-    if ((sp.length != 2) || (sp[0] == null) || (sp[1] == null)) {
-      return false;
-    }
-
-    if (!key.equalsIgnoreCase(sp[0].trim())) {
-      return false;
-    }
-
-    if (!val.equals(sp[1].trim())) {
-      return false;
-    }
-
-    return true;
+  /**
+   * @param req
+   * @return true if we have a Prefer header with "depth-noroot"
+   */
+  public static boolean depthNoroot(final HttpServletRequest req) {
+    return WebdavRequestContext.get(req).getDepthNoroot();
   }
 
   /** Create a location header
@@ -410,13 +328,7 @@ public class Headers {
    */
   public static IfHeaders processIfHeaders(final HttpServletRequest req)
       throws WebdavException {
-    IfHeaders ih = new IfHeaders();
-
-    ih.create = ifNoneMatchAny(req);
-    ih.ifEtag = ifMatch(req);
-    ih.ifHeader = testIfHeader(req);
-
-    return ih;
+    return WebdavRequestContext.get(req).getIfHeaders();
   }
 }
 
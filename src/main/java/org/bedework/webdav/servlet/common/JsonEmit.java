@@ -0,0 +1,458 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.namespace.QName;
+
+/** Emits the same calls as the xml emitters as a compact JSON document,
+ * streamed as it is built.
+ *
+ * <p>Each element becomes an object. Attributes are members named "@" +
+ * name and come first. The content is a member named for the element: a
+ * string for text, an array of elements for element content and null for
+ * an empty tag. Text mixed with elements becomes string entries in the
+ * array. For example
+ * <pre>
+ *   {"@xmlns":"DAV:","multistatus":[
+ *     {"response":[{"href":"/a"},{"propstat":[...]}]}]}
+ * </pre>
+ *
+ * <p>Elements in the default namespace are unprefixed. Namespaces known
+ * when output starts are declared on the root as "@xmlns:prefix" and
+ * used as prefixes. Any others are written as "{uri}name".
+ */
+public class JsonEmit extends Utf8XmlEmit {
+  /** Content type of the output */
+  public static final String contentType = "application/json; charset=UTF-8";
+
+  private static final byte[][] jsonEscapes = new byte[128][];
+
+  static {
+    for (int i = 0; i < 0x20; i++) {
+      jsonEscapes[i] = String.format("\\u%04x", i)
+                             .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    jsonEscapes['"'] = "\\\"".getBytes(StandardCharsets.US_ASCII);
+    jsonEscapes['\\'] = "\\\\".getBytes(StandardCharsets.US_ASCII);
+    jsonEscapes['\n'] = "\\n".getBytes(StandardCharsets.US_ASCII);
+    jsonEscapes['\r'] = "\\r".getBytes(StandardCharsets.US_ASCII);
+    jsonEscapes['\t'] = "\\t".getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /* Before endOpeningTag - attributes may be added */
+  private static final int stateStart = 0;
+
+  /* Content not yet known */
+  private static final int stateOpen = 1;
+
+  /* Text seen - held until we know if elements follow */
+  private static final int stateText = 2;
+
+  /* In an array of elements */
+  private static final int stateElements = 3;
+
+  private static class Frame {
+    final String name;
+
+    int state = stateStart;
+
+    int members;
+
+    int elements;
+
+    StringBuilder text;
+
+    Frame(final String name) {
+      this.name = name;
+    }
+  }
+
+  private final List<Frame> frames = new ArrayList<>();
+
+  private Map<String, String> prefixes;
+
+  private Writer writer;
+
+  /**
+   */
+  public JsonEmit() {
+    super(true);
+  }
+
+  /**
+   * @param req http request
+   * @return true if the client prefers JSON to xml
+   */
+  public static boolean accepts(final HttpServletRequest req) {
+    final Enumeration<?> values = req.getHeaders("Accept");
+
+    if (values == null) {
+      return false;
+    }
+
+    float jsonQ = 0;
+    float xmlQ = 0;
+
+    while (values.hasMoreElements()) {
+      for (final String range: ((String)values.nextElement()).split(",")) {
+        final String[] parts = range.split(";");
+        final String type = parts[0].trim().toLowerCase();
+        final float q = qvalue(parts);
+
+        if (type.equals("application/json")) {
+          jsonQ = Math.max(jsonQ, q);
+        } else if (type.equals("text/xml") ||
+                type.equals("application/xml")) {
+          xmlQ = Math.max(xmlQ, q);
+        }
+      }
+    }
+
+    return (jsonQ > 0) && (jsonQ >= xmlQ);
+  }
+
+  @Override
+  public void startEmit(final OutputStream out) {
+    super.startEmit(out);
+    frames.clear();
+    prefixes = null;
+  }
+
+  @Override
+  public void startTagSameLine(final QName tag) throws IOException {
+    begin();
+
+    final Frame parent = top();
+
+    if (parent == null) {
+      prefixes = getNamespacePrefixes();
+    } else {
+      startElementContent(parent);
+    }
+
+    write('{');
+    final Frame f = new Frame(name(tag));
+    frames.add(f);
+
+    if (parent == null) {
+      for (final Map.Entry<String, String> ent: prefixes.entrySet()) {
+        if (ent.getValue() == null) {
+          attribute("xmlns", ent.getKey());
+        } else {
+          attribute("xmlns:" + ent.getValue(), ent.getKey());
+        }
+      }
+    }
+  }
+
+  @Override
+  public void endOpeningTag() throws IOException {
+    begin();
+
+    final Frame f = top();
+
+    if ((f == null) || (f.state != stateStart)) {
+      return;
+    }
+
+    member(f, f.name);
+    f.state = stateOpen;
+    depth++;
+  }
+
+  @Override
+  public void attribute(final String attrName,
+                        final String attrVal) throws IOException {
+    begin();
+
+    final Frame f = top();
+
+    if ((f == null) || (f.state != stateStart)) {
+      return;
+    }
+
+    member(f, "@" + attrName);
+    string(attrVal);
+  }
+
+  @Override
+  public void attribute(final QName attrName,
+                        final String attrVal) throws IOException {
+    attribute(name(attrName), attrVal);
+  }
+
+  @Override
+  public void closeTagSameLine(final QName tag) throws IOException {
+    begin();
+
+    final Frame f = top();
+
+    if (f == null) {
+      return;
+    }
+
+    switch (f.state) {
+      case stateStart:
+        member(f, f.name);
+        writeAscii("\"\"");
+        break;
+
+      case stateOpen:
+        writeAscii("\"\"");
+        break;
+
+      case stateText:
+        string(f.text.toString());
+        break;
+
+      default:
+        write(']');
+    }
+
+    write('}');
+    frames.remove(frames.size() - 1);
+
+    if ((f.state != stateStart) && (depth > 0)) {
+      depth--;
+    }
+  }
+
+  @Override
+  public void endEmptyTag() throws IOException {
+    begin();
+
+    final Frame f = top();
+
+    if ((f == null) || (f.state != stateStart)) {
+      return;
+    }
+
+    member(f, f.name);
+    writeAscii("null}");
+    frames.remove(frames.size() - 1);
+  }
+
+  @Override
+  public void property(final QName tag,
+                       final Reader val) throws IOException {
+    openTagSameLine(tag);
+
+    try {
+      final char[] cbuf = new char[4096];
+
+      for (;;) {
+        final int ct = val.read(cbuf);
+
+        if (ct < 0) {
+          break;
+        }
+
+        value(new String(cbuf, 0, ct));
+      }
+    } finally {
+      try {
+        val.close();
+      } catch (final Throwable ignored) {
+      }
+    }
+
+    closeTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void cdataValue(final String val) throws IOException {
+    value(val);
+  }
+
+  @Override
+  public void value(final String val) throws IOException {
+    begin();
+
+    final Frame f = top();
+
+    if ((f == null) || (val == null) || (val.length() == 0)) {
+      return;
+    }
+
+    switch (f.state) {
+      case stateOpen:
+        f.text = new StringBuilder(val);
+        f.state = stateText;
+        break;
+
+      case stateText:
+        f.text.append(val);
+        break;
+
+      case stateElements:
+        /* Text between elements - drop white space */
+        if (val.trim().length() > 0) {
+          if (f.elements > 0) {
+            write(',');
+          }
+          f.elements++;
+          string(val);
+        }
+        break;
+
+      default:
+        // Text before the tag is complete - ignore
+    }
+  }
+
+  @Override
+  public void newline() throws IOException {
+    begin();
+  }
+
+  /** Raw writes to this are treated as text content.
+   *
+   * @return a writer which writes text content
+   */
+  @Override
+  public Writer getWriter() {
+    if (writer == null) {
+      writer = new Writer() {
+        @Override
+        public void write(final char[] cbuf,
+                          final int off,
+                          final int len) throws IOException {
+          value(new String(cbuf, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+          JsonEmit.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          JsonEmit.this.flush();
+        }
+      };
+    }
+
+    return writer;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private Frame top() {
+    if (frames.isEmpty()) {
+      return null;
+    }
+
+    return frames.get(frames.size() - 1);
+  }
+
+  /* An element is starting inside the given one */
+  private void startElementContent(final Frame parent) throws IOException {
+    if (parent.state == stateStart) {
+      endOpeningTag();
+    }
+
+    if (parent.state == stateOpen) {
+      write('[');
+      parent.state = stateElements;
+    } else if (parent.state == stateText) {
+      /* Mixed content - the text so far becomes the first entry */
+      write('[');
+      string(parent.text.toString());
+      parent.text = null;
+      parent.elements++;
+      parent.state = stateElements;
+    }
+
+    if (parent.elements > 0) {
+      write(',');
+    }
+
+    parent.elements++;
+  }
+
+  private void member(final Frame f,
+                      final String name) throws IOException {
+    if (f.members > 0) {
+      write(',');
+    }
+
+    f.members++;
+    string(name);
+    write(':');
+  }
+
+  private void string(final String val) throws IOException {
+    write('"');
+    writeEscaped(val, jsonEscapes);
+    write('"');
+  }
+
+  private String name(final QName tag) {
+    final String uri = tag.getNamespaceURI();
+
+    if ((uri == null) || (uri.length() == 0)) {
+      return tag.getLocalPart();
+    }
+
+    if ((prefixes == null) || !prefixes.containsKey(uri)) {
+      return "{" + uri + "}" + tag.getLocalPart();
+    }
+
+    final String prefix = prefixes.get(uri);
+
+    if (prefix == null) {
+      return tag.getLocalPart();
+    }
+
+    return prefix + ":" + tag.getLocalPart();
+  }
+
+  private static float qvalue(final String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      final String p = parts[i].trim();
+
+      if (!p.startsWith("q=")) {
+        continue;
+      }
+
+      try {
+        return Float.parseFloat(p.substring(2).trim());
+      } catch (final NumberFormatException nfe) {
+        return 0;
+      }
+    }
+
+    return 1;
+  }
+}
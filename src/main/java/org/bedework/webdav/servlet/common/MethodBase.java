@@ -20,7 +20,6 @@ package org.bedework.webdav.servlet.common;
 
 import org.bedework.util.misc.Logged;
 import org.bedework.util.xml.XmlEmit;
-import org.bedework.util.xml.XmlEmit.NameSpace;
 import org.bedework.util.xml.XmlEmit.Notifier;
 import org.bedework.util.xml.XmlUtil;
 import org.bedework.util.xml.tagdefs.WebdavTags;
@@ -34,24 +33,26 @@ import org.bedework.webdav.servlet.shared.WebdavStatusCode;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URLDecoder;
 import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.function.Supplier;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.ws.Holder;
 
 /** Base class for all webdav servlet methods.
@@ -73,12 +74,19 @@ public abstract class MethodBase extends Logged {
 
   protected XmlEmit xml;
 
+  /* Set when the target was left out for Prefer: depth-noroot */
+  private boolean noRootApplied;
+
+  /* Copy of a cacheable response being written - null if none */
+  private ResponseCache.Capture capture;
+
   /** Called at each request
    */
   public abstract void init();
 
-  private SimpleDateFormat httpDateFormatter =
-      new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss ");
+  private static final DateTimeFormatter httpDateFormatter =
+      DateTimeFormatter.ofPattern("E, dd MMM yyyy HH:mm:ss ")
+                       .withZone(ZoneId.systemDefault());
 
   /**
    * @param req
@@ -94,24 +102,112 @@ public abstract class MethodBase extends Logged {
   public static class MethodInfo {
     private Class methodClass;
 
+    private final Supplier<? extends MethodBase> factory;
+
     private boolean requiresAuth;
 
+    private final boolean safe;
+
+    /* false if the servlet decides from the method name */
+    private final boolean safeSpecified;
+
+    /** Whether the method is safe is decided by the servlet from the
+     * method name - see WebdavServlet.isMutating.
+     *
+     * @param factory creates a new method object
+     * @param requiresAuth
+     */
+    public MethodInfo(final Supplier<? extends MethodBase> factory,
+                      final boolean requiresAuth) {
+      this(factory, requiresAuth, false, false);
+    }
+
     /**
+     * @param factory creates a new method object
+     * @param requiresAuth
+     * @param safe true if the method never changes state. Safe methods
+     *             may run concurrently for a principal.
+     */
+    public MethodInfo(final Supplier<? extends MethodBase> factory,
+                      final boolean requiresAuth,
+                      final boolean safe) {
+      this(factory, requiresAuth, safe, true);
+    }
+
+    private MethodInfo(final Supplier<? extends MethodBase> factory,
+                       final boolean requiresAuth,
+                       final boolean safe,
+                       final boolean safeSpecified) {
+      this.factory = factory;
+      this.requiresAuth = requiresAuth;
+      this.safe = safe;
+      this.safeSpecified = safeSpecified;
+    }
+
+    /** Whether the method is safe is decided by the servlet from the
+     * method name - see WebdavServlet.isMutating.
+     *
      * @param methodClass
      * @param requiresAuth
      */
     public MethodInfo(final Class methodClass, final boolean requiresAuth) {
+      this(methodClass, requiresAuth, false, false);
+    }
+
+    /** The constructor is looked up once here rather than reflectively
+     * instantiating the class for each request.
+     *
+     * @param methodClass
+     * @param requiresAuth
+     * @param safe true if the method never changes state
+     */
+    public MethodInfo(final Class methodClass,
+                      final boolean requiresAuth,
+                      final boolean safe) {
+      this(methodClass, requiresAuth, safe, true);
+    }
+
+    private MethodInfo(final Class methodClass,
+                       final boolean requiresAuth,
+                       final boolean safe,
+                       final boolean safeSpecified) {
       this.methodClass = methodClass;
       this.requiresAuth = requiresAuth;
+      this.safe = safe;
+      this.safeSpecified = safeSpecified;
+
+      final MethodHandle ctor;
+      try {
+        ctor = MethodHandles.publicLookup().findConstructor(
+                methodClass, MethodType.methodType(void.class));
+      } catch (final Throwable t) {
+        throw new IllegalArgumentException(
+                "No public no-arg constructor for " + methodClass, t);
+      }
+
+      factory = () -> {
+        try {
+          return (MethodBase)ctor.invoke();
+        } catch (final Throwable t) {
+          throw new RuntimeException(t);
+        }
+      };
     }
 
     /**
-     * @return Class for this method
+     * @return Class for this method - null if created with a factory
      */
     public Class getMethodClass() {
       return methodClass;
     }
 
+    /**
+     * @return a new uninitialised method object
+     */
+    public MethodBase newMethod() {
+      return factory.get();
+    }
+
     /** Called when servicing a request to determine if this method requires
      * authentication. Allows the servlet to reject attempts to change state
      * while unauthenticated.
@@ -121,6 +217,22 @@ public abstract class MethodBase extends Logged {
     public boolean getRequiresAuth() {
       return requiresAuth;
     }
+
+    /** Whether a method needs authentication is a separate question - ACL
+     * and COPY don't but do change state.
+     *
+     * @return true if the method never changes state
+     */
+    public boolean getSafe() {
+      return safe;
+    }
+
+    /**
+     * @return true if registered with an explicit safe flag
+     */
+    public boolean getSafeSpecified() {
+      return safeSpecified;
+    }
   }
 
   /** Called at each request
@@ -152,6 +264,207 @@ public abstract class MethodBase extends Logged {
     return nsIntf;
   }
 
+  /** Get the parsed headers for this request
+   *
+   * @param req      Servlet request object
+   * @return the request context - never null
+   */
+  public WebdavRequestContext getRequestContext(final HttpServletRequest req) {
+    return WebdavRequestContext.get(req);
+  }
+
+  /**
+   * @return limits applied to xml request bodies
+   */
+  protected XmlRequestLimits getXmlLimits() {
+    return XmlRequestLimits.getLimits(getNsIntf());
+  }
+
+  /**
+   * @return cache of parsed request bodies or null if disabled
+   */
+  protected RequestTemplateCache getTemplateCache() {
+    final WebdavServlet servlet = getNsIntf().getServlet();
+
+    if (servlet == null) {
+      return null;
+    }
+
+    return servlet.getRequestTemplateCache();
+  }
+
+  /**
+   * @return policy for flushing streamed responses
+   */
+  protected FlushPolicy getFlushPolicy() {
+    final WebdavServlet servlet = getNsIntf().getServlet();
+
+    if ((servlet == null) || (servlet.getFlushPolicy() == null)) {
+      return FlushPolicy.getDefault();
+    }
+
+    return servlet.getFlushPolicy();
+  }
+
+  /**
+   * @return true to omit empty propstat elements from minimal responses
+   */
+  protected boolean getDropEmptyPropstat() {
+    final WebdavServlet servlet = getNsIntf().getServlet();
+
+    return (servlet != null) && servlet.getDropEmptyPropstat();
+  }
+
+  /** Rfc 8144 - should the response for the target of a request with
+   * depth leave out the target itself?
+   *
+   * @param req http request
+   * @param depth of request
+   * @return true if the target should be left out
+   */
+  protected boolean omitRoot(final HttpServletRequest req,
+                             final int depth) {
+    if ((depth == 0) || !getRequestContext(req).getDepthNoroot()) {
+      return false;
+    }
+
+    noRootApplied = true;
+    return true;
+  }
+
+  /** Add a Preference-Applied header for the preferences we honoured.
+   * Must be called after omitRoot and before any output.
+   *
+   * @param req http request
+   * @param resp http response
+   */
+  protected void addPreferenceApplied(final HttpServletRequest req,
+                                      final HttpServletResponse resp) {
+    final StringBuilder sb = new StringBuilder();
+
+    if (hasBriefHeader && getRequestContext(req).getReturnMinimal()) {
+      sb.append("return=minimal");
+    }
+
+    if (noRootApplied) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+
+      sb.append("depth-noroot");
+    }
+
+    if (sb.length() > 0) {
+      resp.setHeader("Preference-Applied", sb.toString());
+    }
+  }
+
+  /**
+   * @return cache of multistatus responses or null if disabled
+   */
+  protected ResponseCache getResponseCache() {
+    final WebdavServlet servlet = getNsIntf().getServlet();
+
+    if (servlet == null) {
+      return null;
+    }
+
+    return servlet.getResponseCache();
+  }
+
+  /** Send a saved response for a request about a collection if we have
+   * one for its current sync token. Otherwise arrange for the response
+   * to be copied as it is written so that saveCachedResponse can save it.
+   *
+   * <p>Must be called before startEmit. The status and content type are
+   * set when a saved response is sent.
+   *
+   * @param req http request
+   * @param resp http response
+   * @param node the collection the request is about
+   * @param depth of request
+   * @param body of request - null for none
+   * @return true if the response was sent
+   * @throws WebdavException on error
+   */
+  protected boolean cachedResponse(final HttpServletRequest req,
+                                   final HttpServletResponse resp,
+                                   final WebdavNsNode node,
+                                   final int depth,
+                                   final String body) throws WebdavException {
+    final ResponseCache rc = getResponseCache();
+
+    if ((rc == null) || dumpContent || !(xml instanceof Utf8XmlEmit) ||
+            (node == null) || !node.isCollection() || !node.getExists() ||
+            !node.allowsSyncReport()) {
+      return false;
+    }
+
+    final String token = node.getSyncToken();
+    final String accessClass = getNsIntf().getAccessClass(node);
+
+    if ((token == null) || (accessClass == null)) {
+      return false;
+    }
+
+    final String key = ResponseCache.makeKey(req.getMethod(),
+                                             node.getUri(),
+                                             depth,
+                                             body,
+                                             accessClass,
+                                             hasBriefHeader,
+                                             noRootApplied,
+                                             xml.getClass().getName());
+
+    final ResponseCache.Entry ent = rc.get(key, token);
+
+    if (ent == null) {
+      capture = rc.startCapture(key, token);
+      return false;
+    }
+
+    try {
+      resp.setStatus(WebdavStatusCode.SC_MULTI_STATUS);
+      resp.setContentType(ent.getContentType());
+      ent.writeTo(resp.getOutputStream());
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+
+    return true;
+  }
+
+  /** Save the response copied after a call to cachedResponse.
+   *
+   * @param resp http response
+   * @param complete false if the response should not be reused
+   */
+  protected void saveCachedResponse(final HttpServletResponse resp,
+                                    final boolean complete) {
+    if (capture == null) {
+      return;
+    }
+
+    if (complete) {
+      capture.save(resp.getContentType());
+    }
+
+    capture = null;
+  }
+
+  /**
+   * @return limits on walking the tree
+   */
+  protected TraversalBudget getTraversalBudget() {
+    final WebdavServlet servlet = getNsIntf().getServlet();
+
+    if ((servlet == null) || (servlet.getTraversalBudget() == null)) {
+      return TraversalBudget.getUnlimited();
+    }
+
+    return servlet.getTraversalBudget();
+  }
+
   /** Get the decoded and fixed resource URI
    *
    * @param req      Servlet request object
@@ -346,7 +659,7 @@ public abstract class MethodBase extends Logged {
                                   final HttpServletResponse resp)
       throws WebdavException{
     try {
-      hasBriefHeader = Headers.brief(req);
+      hasBriefHeader = getRequestContext(req).getBrief();
 
       return parseContent(req.getContentLength(), getNsIntf().getReader(req));
     } catch (WebdavException we) {
@@ -374,15 +687,41 @@ public abstract class MethodBase extends Logged {
       return null;
     }
 
+    final XmlRequestLimits limits = getXmlLimits();
+    final String body = limits.read(rdr, len);
+
+    /* Check the structure before we build the DOM */
+    limits.scan(body);
+
+    return XmlRequestParser.parseDocument(new StringReader(body));
+  }
+
+  /** Read the entire Webdav request body.
+   *
+   * @param req        Servlet request object
+   * @return String    body or null for no body
+   * @exception WebdavException Some error occurred.
+   */
+  protected String readContent(final HttpServletRequest req)
+      throws WebdavException{
     try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setNamespaceAware(true);
+      hasBriefHeader = getRequestContext(req).getBrief();
 
-      DocumentBuilder builder = factory.newDocumentBuilder();
+      final int len = req.getContentLength();
 
-      return builder.parse(new InputSource(rdr));
-    } catch (SAXException e) {
-      throw new WebdavBadRequest();
+      if (len == 0) {
+        return null;
+      }
+
+      final Reader rdr = getNsIntf().getReader(req);
+
+      if (rdr == null) {
+        return null;
+      }
+
+      return getXmlLimits().read(rdr, len);
+    } catch (WebdavException we) {
+      throw we;
     } catch (Throwable t) {
       throw new WebdavException(t);
     }
@@ -393,9 +732,7 @@ public abstract class MethodBase extends Logged {
       return null;
     }
 
-    synchronized (httpDateFormatter) {
-      return httpDateFormatter.format(val) + "GMT";
-    }
+    return httpDateFormatter.format(val.toInstant()) + "GMT";
   }
 
   private class XmlNotifier extends Notifier {
@@ -438,6 +775,14 @@ public abstract class MethodBase extends Logged {
 
     final Holder<Boolean> openFlag = new Holder<Boolean>(Boolean.FALSE);
     final XmlNotifier notifier = new XmlNotifier(openFlag);
+
+    /* Load the content up front only if a registered property needs it.
+     * Otherwise the node loads what it needs as before.
+     */
+    if (intf.needsContent(props)) {
+      node.init(true);
+    }
+
     try {
       xml.setNotifier(notifier);
 
@@ -483,6 +828,13 @@ public abstract class MethodBase extends Logged {
         closeTag(WebdavTags.prop);
         addStatus(HttpServletResponse.SC_NOT_FOUND, null);
 
+        closeTag(WebdavTags.propstat);
+      } else if (!openFlag.value && !getDropEmptyPropstat()) {
+        /* Rfc 8144 - a response needs at least an empty 200 propstat */
+        openTag(WebdavTags.propstat);
+        emptyTag(WebdavTags.prop);
+        addStatus(HttpServletResponse.SC_OK, null);
+
         closeTag(WebdavTags.propstat);
       }
     } finally {
@@ -558,8 +910,31 @@ public abstract class MethodBase extends Logged {
    *                   XmlEmit wrappers
    * ==================================================================== */
 
+  /** Start emitting the response. The utf-8 emitter writes straight to
+   * the output stream unless we are dumping content. The content type is
+   * replaced if the emitter writes JSON.
+   *
+   * @param resp http response
+   * @throws WebdavException on error
+   */
   protected void startEmit(final HttpServletResponse resp) throws WebdavException {
     try {
+      if (xml instanceof JsonEmit) {
+        resp.setContentType(JsonEmit.contentType);
+      }
+
+      if (!dumpContent && (xml instanceof Utf8XmlEmit)) {
+        final Utf8XmlEmit uxml = (Utf8XmlEmit)xml;
+
+        if (capture == null) {
+          uxml.startEmit(resp.getOutputStream());
+        } else {
+          uxml.startEmit(capture.wrap(resp.getOutputStream()));
+        }
+        uxml.setFlushPolicy(getFlushPolicy());
+        return;
+      }
+
       xml.startEmit(resp.getWriter());
     } catch (Throwable t) {
       throw new WebdavException(t);
@@ -574,7 +949,7 @@ public abstract class MethodBase extends Logged {
   public void addNs(final String val) throws WebdavException {
     if (xml.getNameSpace(val) == null) {
       try {
-        xml.addNs(new NameSpace(val, null), false);
+        Utf8XmlEmit.addNamespace(xml, val, null, false);
       } catch (IOException e) {
         throw new WebdavException(e);
       }
@@ -704,6 +1079,12 @@ public abstract class MethodBase extends Logged {
     }
   }
 
+  /** Flush the response. While a multistatus is being streamed the
+   * utf-8 emitter applies the servlet's flush policy so this may not go to
+   * the client immediately.
+   *
+   * @throws WebdavException on error
+   */
   protected void flush() throws WebdavException {
     try {
       xml.flush();
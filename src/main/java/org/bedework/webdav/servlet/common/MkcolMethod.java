@@ -46,7 +46,7 @@ public class MkcolMethod extends PropPatchMethod {
 
     final WebdavNsIntf intf = getNsIntf();
 
-    final Headers.IfHeaders ifHeaders = Headers.processIfHeaders(req);
+    final Headers.IfHeaders ifHeaders = getRequestContext(req).getIfHeaders();
     if ((ifHeaders.ifHeader != null) &&
         !intf.syncTokenMatch(ifHeaders.ifHeader)) {
       intf.rollback();
@@ -0,0 +1,211 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.util.xml.XmlUtil;
+import org.bedework.util.xml.tagdefs.BedeworkServerTags;
+import org.bedework.util.xml.tagdefs.WebdavTags;
+import org.bedework.webdav.servlet.common.PropFindMethod.PropRequest;
+import org.bedework.webdav.servlet.shared.PropertyProjection;
+import org.bedework.webdav.servlet.shared.WebdavBadRequest;
+import org.bedework.webdav.servlet.shared.WebdavException;
+import org.bedework.webdav.servlet.shared.WebdavNsIntf;
+import org.bedework.webdav.servlet.shared.WebdavNsNode;
+import org.bedework.webdav.servlet.shared.WebdavStatusCode;
+
+import org.w3c.dom.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.namespace.QName;
+
+/** A multiget for any resource - as calendar-multiget but not limited to
+ * calendar data. The request is
+ * <pre>
+ *   &lt;!ELEMENT resource-multiget ((allprop | propname | prop), href+)&gt;
+ * </pre>
+ * in the bedework system namespace with the DAV elements as in PROPFIND.
+ * Depth must be 0 if present.
+ *
+ * <p>The nodes are fetched a batch at a time with WebdavNsIntf.getNodes
+ * and a response written for each href in the order given - 404 for those
+ * which can't be found, 403 for those the principal may not access and
+ * 400 for those which are malformed or not on this server.
+ */
+public class MultigetReport implements ReportHandler {
+  /** Root element of the request */
+  public static final QName resourceMultiget =
+          new QName(BedeworkServerTags.bedeworkSystemNamespace,
+                    "resource-multiget");
+
+  /** Name of counter for hrefs requested */
+  public static final String hrefsCounter = "multiget.hrefs";
+
+  /** Name of counter for hrefs not found */
+  public static final String notFoundCounter = "multiget.notFound";
+
+  /** Name of counter for hrefs not accessible */
+  public static final String forbiddenCounter = "multiget.forbidden";
+
+  /** Name of counter for hrefs we could not map to a uri */
+  public static final String badHrefCounter = "multiget.badHref";
+
+  /* Nodes fetched at a time */
+  private static final int batchSize = 100;
+
+  private final ReportMethod rm;
+
+  private PropRequest pr;
+
+  private final List<String> hrefs = new ArrayList<>();
+
+  /**
+   * @param rm the method handling the request
+   */
+  public MultigetReport(final ReportMethod rm) {
+    this.rm = rm;
+  }
+
+  @Override
+  public void parse(final Element root,
+                    final int depth) throws WebdavException {
+    rm.checkDepth(rm.defaultDepth(depth, 0), 0);
+
+    final Element[] children = rm.getChildrenArray(root);
+
+    if (children.length < 2) {
+      throw new WebdavBadRequest("Expect a prop element and one or more hrefs");
+    }
+
+    final Element el = children[0];
+
+    if (XmlUtil.nodeMatches(el, WebdavTags.allprop)) {
+      pr = new PropRequest(PropRequest.ReqType.propAll);
+    } else if (XmlUtil.nodeMatches(el, WebdavTags.propname)) {
+      pr = new PropRequest(PropRequest.ReqType.propName);
+    } else if (XmlUtil.nodeMatches(el, WebdavTags.prop)) {
+      pr = rm.getPropFindMethod().parseProps(el);
+    } else {
+      throw new WebdavBadRequest("Expect " + WebdavTags.prop);
+    }
+
+    for (int i = 1; i < children.length; i++) {
+      if (!XmlUtil.nodeMatches(children[i], WebdavTags.href)) {
+        throw new WebdavBadRequest("Expect " + WebdavTags.href);
+      }
+
+      final String href = rm.getElementContent(children[i]);
+
+      if ((href == null) || (href.trim().length() == 0)) {
+        throw new WebdavBadRequest("Empty " + WebdavTags.href);
+      }
+
+      hrefs.add(href.trim());
+    }
+  }
+
+  @Override
+  public void process(final HttpServletRequest req,
+                      final HttpServletResponse resp,
+                      final int depth) throws WebdavException {
+    final WebdavNsIntf intf = rm.getNsIntf();
+    final PropertyProjection projection = pr.getProjection(intf);
+
+    resp.setStatus(WebdavStatusCode.SC_MULTI_STATUS);
+    resp.setContentType("text/xml; charset=UTF-8");
+
+    rm.startEmit(resp);
+
+    rm.openTag(WebdavTags.multistatus);
+
+    for (int start = 0; start < hrefs.size(); start += batchSize) {
+      final List<String> batch =
+              hrefs.subList(start, Math.min(start + batchSize, hrefs.size()));
+      final List<String> uris = new ArrayList<>(batch.size());
+      final List<String> found = new ArrayList<>(batch.size());
+
+      for (final String href: batch) {
+        String uri = null;
+
+        try {
+          uri = intf.getUri(href);
+          found.add(uri);
+        } catch (final WebdavBadRequest wbr) {
+          // Malformed or not ours - reported in its response
+        }
+
+        uris.add(uri);
+      }
+
+      final Map<String, WebdavNsNode> nodes =
+              intf.getNodes(found, WebdavNsIntf.nodeTypeUnknown, projection);
+
+      for (int i = 0; i < batch.size(); i++) {
+        final String uri = uris.get(i);
+
+        if (uri == null) {
+          WebdavStats.inc(badHrefCounter);
+          doStatus(batch.get(i), HttpServletResponse.SC_BAD_REQUEST);
+        } else if (!nodes.containsKey(uri)) {
+          WebdavStats.inc(notFoundCounter);
+          doStatus(batch.get(i), HttpServletResponse.SC_NOT_FOUND);
+        } else if (nodes.get(uri) == null) {
+          WebdavStats.inc(forbiddenCounter);
+          doStatus(batch.get(i), HttpServletResponse.SC_FORBIDDEN);
+        } else {
+          doResponse(nodes.get(uri));
+        }
+      }
+    }
+
+    rm.closeTag(WebdavTags.multistatus);
+
+    rm.flush();
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void doResponse(final WebdavNsNode node) throws WebdavException {
+    WebdavStats.inc(hrefsCounter);
+
+    rm.openTag(WebdavTags.response);
+    rm.getPropFindMethod().doNodeProperties(node, pr);
+    rm.closeTag(WebdavTags.response);
+
+    rm.flush();
+  }
+
+  private void doStatus(final String href,
+                        final int status) throws WebdavException {
+    WebdavStats.inc(hrefsCounter);
+
+    rm.openTag(WebdavTags.response);
+    rm.property(WebdavTags.href, href);
+    rm.addStatus(status, null);
+    rm.closeTag(WebdavTags.response);
+
+    rm.flush();
+  }
+}
@@ -0,0 +1,107 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.util.xml.XmlEmit;
+import org.bedework.util.xml.tagdefs.AppleIcalTags;
+import org.bedework.util.xml.tagdefs.AppleServerTags;
+import org.bedework.util.xml.tagdefs.BedeworkServerTags;
+import org.bedework.util.xml.tagdefs.CaldavDefs;
+import org.bedework.util.xml.tagdefs.CarddavTags;
+import org.bedework.util.xml.tagdefs.ICalTags;
+import org.bedework.util.xml.tagdefs.IscheduleTags;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** The namespaces the server knows about with fixed prefixes. These are
+ * added to the emitter for each request so that they can all be declared
+ * once on the root element and every response uses the same prefixes.
+ *
+ * <p>The prefixes are those used by NamespaceAbbrevs.
+ */
+public final class NamespaceRegistry {
+  private static volatile Map<String, String> known =
+          Collections.emptyMap();
+
+  static {
+    register(CaldavDefs.caldavNamespace, "C");
+    register(AppleServerTags.appleCaldavNamespace, "CS");
+    register(CarddavTags.namespace, "CARD");
+    register(AppleIcalTags.appleIcalNamespace, "AICAL");
+    register(BedeworkServerTags.bedeworkCaldavNamespace, "BWS");
+    register(BedeworkServerTags.bedeworkCarddavNamespace, "BWC");
+    register(BedeworkServerTags.bedeworkSystemNamespace, "BSYS");
+    register(ICalTags.namespace, "IC");
+    register(IscheduleTags.namespace, "ISCH");
+  }
+
+  private NamespaceRegistry() {
+  }
+
+  /** Add a namespace. A later registration for the same namespace replaces
+   * the prefix.
+   *
+   * @param uri of namespace
+   * @param prefix to use
+   */
+  public static synchronized void register(final String uri,
+                                           final String prefix) {
+    final Map<String, String> m = new LinkedHashMap<>(known);
+
+    m.put(uri, prefix);
+    known = Collections.unmodifiableMap(m);
+  }
+
+  /**
+   * @return namespace to prefix in registration order
+   */
+  public static Map<String, String> getKnown() {
+    return known;
+  }
+
+  /** Add all known namespaces not already added to the emitter. If a prefix
+   * has already been used for some other namespace one is generated. Those
+   * already added keep their prefix and are still declared on the root.
+   *
+   * @param xml emitter
+   * @throws IOException on error
+   */
+  public static void addTo(final XmlEmit xml) throws IOException {
+    for (final Map.Entry<String, String> ent: known.entrySet()) {
+      final String uri = ent.getKey();
+
+      if (xml.getNameSpace(uri) != null) {
+        if (xml instanceof Utf8XmlEmit) {
+          ((Utf8XmlEmit)xml).recordNs(uri);
+        }
+        continue;
+      }
+
+      try {
+        Utf8XmlEmit.addNamespace(xml, uri, ent.getValue(), false);
+      } catch (final IOException ignored) {
+        // Duplicate alias
+        Utf8XmlEmit.addNamespace(xml, uri, null, false);
+      }
+    }
+  }
+}
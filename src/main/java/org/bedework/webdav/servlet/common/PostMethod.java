@@ -60,7 +60,8 @@ public class PostMethod extends MethodBase {
 
     final WebdavNsIntf intf = getNsIntf();
 
-    final IfHeaders ifHeaders = Headers.processIfHeaders(pars.getReq());
+    final IfHeaders ifHeaders =
+            getRequestContext(pars.getReq()).getIfHeaders();
     if ((ifHeaders.ifHeader != null) &&
             !intf.syncTokenMatch(ifHeaders.ifHeader)) {
       intf.rollback();
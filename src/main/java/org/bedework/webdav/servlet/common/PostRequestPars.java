@@ -19,19 +19,15 @@
 package org.bedework.webdav.servlet.common;
 
 import org.bedework.util.misc.Util;
-import org.bedework.webdav.servlet.shared.WebdavBadRequest;
 import org.bedework.webdav.servlet.shared.WebdavException;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf;
 
 import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import java.io.Reader;
+import java.io.StringReader;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 /**
  */
@@ -227,18 +223,13 @@ public class PostRequestPars {
       return null;
     }
 
-    try {
-      final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setNamespaceAware(true);
+    final XmlRequestLimits limits = XmlRequestLimits.getLimits(intf);
+    final String body = limits.read(rdr, req.getContentLength());
 
-      final DocumentBuilder builder = factory.newDocumentBuilder();
+    /* Check the structure before we build the DOM */
+    limits.scan(body);
 
-      return builder.parse(new InputSource(rdr));
-    } catch (final SAXException e) {
-      throw new WebdavBadRequest();
-    } catch (final Throwable t) {
-      throw new WebdavException(t);
-    }
+    return XmlRequestParser.parseDocument(new StringReader(body));
   }
 
   /**
@@ -22,6 +22,8 @@ import org.bedework.util.misc.Logged;
 import org.bedework.util.xml.XmlEmit;
 import org.bedework.util.xml.XmlUtil;
 import org.bedework.util.xml.tagdefs.WebdavTags;
+import org.bedework.webdav.servlet.shared.PropertyProjection;
+import org.bedework.webdav.servlet.shared.WdChildCursor;
 import org.bedework.webdav.servlet.shared.WebdavBadRequest;
 import org.bedework.webdav.servlet.shared.WebdavException;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf;
@@ -40,7 +42,7 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * @author Mike Douglass
  */
-public class PrincipalMatchReport extends Logged {
+public class PrincipalMatchReport extends Logged implements ReportHandler {
   private final MethodBase mb;
 
   private final WebdavNsIntf intf;
@@ -86,11 +88,14 @@ public class PrincipalMatchReport extends Logged {
    *    <!ELEMENT self EMPTY>
    *
    * @param root of request
-   * @param depth how far down
+   * @param depth how far down - must be 0 if present
    * @throws WebdavException on fatal error
    */
+  @Override
   public void parse(final Element root,
                     final int depth) throws WebdavException {
+    mb.checkDepth(mb.defaultDepth(depth, 0), 0);
+
     try {
       if (debug) {
         debug("ReportMethod: parsePrincipalMatch");
@@ -166,6 +171,7 @@ public class PrincipalMatchReport extends Logged {
    * @param depth for search
    * @throws WebdavException on fatal error
    */
+  @Override
   public void process(final HttpServletRequest req,
                       final HttpServletResponse resp,
                       final int depth) throws WebdavException {
@@ -175,34 +181,33 @@ public class PrincipalMatchReport extends Logged {
 
       final XmlEmit xml = intf.getXmlEmit();
 
-      xml.startEmit(resp.getWriter());
+      mb.startEmit(resp);
 
       xml.openTag(WebdavTags.multistatus);
 
       final String resourceUri = mb.getResourceUri(req);
-      final Collection<WebdavNsNode> wdnodes;
 
       if (self) {
         /* Return all groups of which this account is a member
          */
-        wdnodes = intf.getGroups(resourceUri, null);
-      } else {
-        // Search for nodes matching the principal-property element.
-        wdnodes = doNodeAndChildren(intf.getNode(resourceUri,
-                                                 WebdavNsIntf.existanceMust,
-                                                 WebdavNsIntf.nodeTypeUnknown,
-                                                 false));
-      }
+        final Collection<WebdavNsNode> wdnodes =
+                intf.getGroups(resourceUri, null);
 
-      if (wdnodes != null) {
-        for (final WebdavNsNode nd: wdnodes) {
-          xml.openTag(WebdavTags.response);
-          nd.generateHref(xml);
-
-          mb.doPropFind(nd, props);
-
-          xml.closeTag(WebdavTags.response);
+        if (wdnodes != null) {
+          for (final WebdavNsNode nd: wdnodes) {
+            doResponse(nd);
+          }
         }
+      } else {
+        // Search for nodes matching the principal-property element.
+        final PropertyProjection projection = getProjection();
+
+        doNodeAndChildren(intf.getNode(resourceUri,
+                                       WebdavNsIntf.existanceMust,
+                                       WebdavNsIntf.nodeTypeUnknown,
+                                       false,
+                                       projection),
+                          projection);
       }
 
       xml.closeTag(WebdavTags.multistatus);
@@ -220,25 +225,61 @@ public class PrincipalMatchReport extends Logged {
     }
   }
 
-  private Collection<WebdavNsNode> doNodeAndChildren(final WebdavNsNode node)
+  /* Write a response for each matching node as we find it */
+  private void doNodeAndChildren(final WebdavNsNode node,
+                                 final PropertyProjection projection)
           throws WebdavException {
-    final Collection<WebdavNsNode> nodes = new ArrayList<>();
-
     if (!nodeMatches(node)) {
       // Stop here?
-      return nodes;
+      return;
     }
 
     if (!node.isCollection()) {
-      nodes.add(node);
-      return nodes;
+      doResponse(node);
+      return;
     }
 
-    for (final WebdavNsNode child: intf.getChildren(node, null)) {
-      nodes.addAll(doNodeAndChildren(child));
+    final WdChildCursor cursor = intf.getChildCursor(node, null,
+                                                     projection);
+
+    try {
+      while (cursor.hasNext()) {
+        doNodeAndChildren(cursor.next(), projection);
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private void doResponse(final WebdavNsNode node) throws WebdavException {
+    final XmlEmit xml = intf.getXmlEmit();
+
+    try {
+      xml.openTag(WebdavTags.response);
+      node.generateHref(xml);
+
+      mb.doPropFind(node, props);
+
+      xml.closeTag(WebdavTags.response);
+
+      xml.flush();
+    } catch (final WebdavException we) {
+      throw we;
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
+
+  /* The properties we return plus any we match on */
+  private PropertyProjection getProjection() {
+    final PropertyProjection projection =
+            PropertyProjection.forProperties(props, intf);
+
+    if (owner) {
+      return projection.with(WebdavTags.owner);
     }
 
-    return nodes;
+    return projection;
   }
 
   private boolean nodeMatches(final WebdavNsNode node) throws WebdavException {
@@ -20,9 +20,14 @@ package org.bedework.webdav.servlet.common;
 
 import org.bedework.util.misc.Util;
 import org.bedework.util.xml.XmlUtil;
+import org.bedework.util.xml.tagdefs.BedeworkServerTags;
 import org.bedework.util.xml.tagdefs.WebdavTags;
+import org.bedework.webdav.servlet.shared.PropertyProjection;
+import org.bedework.webdav.servlet.shared.WdChildCursor;
+import org.bedework.webdav.servlet.shared.WdChildSummary;
 import org.bedework.webdav.servlet.shared.WebdavBadRequest;
 import org.bedework.webdav.servlet.shared.WebdavException;
+import org.bedework.webdav.servlet.shared.WebdavForbidden;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf;
 import org.bedework.webdav.servlet.shared.WebdavNsNode;
 import org.bedework.webdav.servlet.shared.WebdavNsNode.PropertyTagEntry;
@@ -33,16 +38,52 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamReader;
 
 /** Class called to handle PROPFIND
  *
  *   @author Mike Douglass   douglm   rpi.edu
  */
 public class PropFindMethod extends MethodBase {
+  /** Name of counter for collections answered from child summaries */
+  public static final String summariesCounter = "propfind.childSummaries";
+
+  /** RFC 4918 precondition for a refused Depth: infinity */
+  public static final QName propfindFiniteDepth =
+          new QName(WebdavTags.namespace, "propfind-finite-depth");
+
+  /** RFC 5323 condition for a truncated result */
+  public static final QName numberOfMatchesWithinLimits =
+          new QName(WebdavTags.namespace, "number-of-matches-within-limits");
+
+  /** Carries the token to continue a truncated PROPFIND */
+  public static final QName continuation =
+          new QName(BedeworkServerTags.bedeworkSystemNamespace,
+                    "continuation");
+
+  /** Name of counter for 304 responses */
+  public static final String notModifiedCounter = "propfind.notModified";
+
+  /* Properties we can write from a WdChildSummary */
+  private static final Set<QName> summaryProps = new HashSet<>(
+          Arrays.asList(WebdavTags.getetag,
+                        WebdavTags.resourcetype,
+                        WebdavTags.getcontenttype));
+
   /**
    */
   public static class PropRequest {
@@ -66,10 +107,57 @@ public class PropFindMethod extends MethodBase {
     /** For the prop element we build a Collection of WebdavProperty
      */
     public List<WebdavProperty> props;
+
+    /**
+     * @param intf says which properties need the content
+     * @return the properties this request will ask for
+     */
+    public PropertyProjection getProjection(final WebdavNsIntf intf) {
+      if (reqType != ReqType.prop) {
+        return PropertyProjection.all;
+      }
+
+      return PropertyProjection.forProperties(props, intf);
+    }
   }
 
   private PropRequest parsedReq;
 
+  /* Leave out the response for the target - Prefer: depth-noroot */
+  private boolean noRoot;
+
+  /* True if requestBody holds the body - it may be null */
+  private boolean cacheBody;
+
+  private String requestBody;
+
+  /* Set when the request can't or the namespace won't use summaries */
+  private boolean noSummaries;
+
+  /* ....................................................................
+   *                   Tree walk state
+   * .................................................................... */
+
+  private TraversalBudget budget = TraversalBudget.getUnlimited();
+
+  private int requestDepth;
+
+  private long walkStart;
+
+  /* Responses to pass over when continuing */
+  private int skip;
+
+  /* Responses passed over or written */
+  private int position;
+
+  private int written;
+
+  /* Counter name for the limit which stopped us - null if not stopped */
+  private String stoppedBy;
+
+  /* Some collection was not walked because of the depth limit */
+  private boolean depthLimited;
+
   @Override
   public void init() {
   }
@@ -81,18 +169,33 @@ public class PropFindMethod extends MethodBase {
       debug("PropFindMethod: doMethod");
     }
 
-    Document doc = parseContent(req, resp);
+    if (getNsIntf().getPullParseProps()) {
+      final String body = readContent(req);
 
-    if (doc == null) {
-      // Treat as allprop request
-      parsedReq = new PropRequest(PropRequest.ReqType.propAll);
-    }
+      /* We have the body so the response may be cached */
+      cacheBody = true;
+      requestBody = body;
+
+      if (body == null) {
+        // Treat as allprop request
+        parsedReq = new PropRequest(PropRequest.ReqType.propAll);
+      } else {
+        processBody(body);
+      }
+    } else {
+      Document doc = parseContent(req, resp);
 
-    if (doc != null) {
-      processDoc(doc);
+      if (doc == null) {
+        // Treat as allprop request
+        parsedReq = new PropRequest(PropRequest.ReqType.propAll);
+      }
+
+      if (doc != null) {
+        processDoc(doc);
+      }
     }
 
-    int depth = Headers.depth(req);
+    int depth = getRequestContext(req).getDepth(Headers.depthNone);
     if (depth == Headers.depthNone) {
       depth = Headers.depthInfinity;
     }
@@ -101,6 +204,13 @@ public class PropFindMethod extends MethodBase {
       throw new WebdavBadRequest("PROPFIND: unexpected element");
     }
 
+    budget = getTraversalBudget();
+
+    if ((depth == Headers.depthInfinity) && budget.getFiniteDepth()) {
+      WebdavStats.inc(TraversalBudget.refusedCounter);
+      throw new WebdavForbidden(propfindFiniteDepth);
+    }
+
     if (debug) {
       debug("PropFindMethod: depth=" + depth);
       debug("                type=" + parsedReq.reqType);
@@ -146,6 +256,96 @@ public class PropFindMethod extends MethodBase {
     }
   }
 
+  /* Use a cached parse of the body if we have one - otherwise parse with
+   * the pull parser and cache the result.
+   */
+  private void processBody(final String body) throws WebdavException {
+    final RequestTemplateCache cache = getTemplateCache();
+
+    if (cache != null) {
+      final RequestTemplateCache.Template t = cache.get(body);
+
+      if ((t != null) && t.getRoot().equals(WebdavTags.propfind)) {
+        for (final String ns: t.getNamespaces()) {
+          addNs(ns);
+        }
+
+        parsedReq = t.getPropRequest();
+        return;
+      }
+    }
+
+    final XMLStreamReader rdr =
+            XmlRequestParser.getStreamReader(new StringReader(body),
+                                             getXmlLimits());
+
+    try {
+      processStream(rdr);
+    } finally {
+      XmlRequestParser.close(rdr);
+    }
+
+    if ((cache != null) && (parsedReq != null)) {
+      cache.put(body, new RequestTemplateCache.Template(WebdavTags.propfind,
+                                                        parsedReq));
+    }
+  }
+
+  /* Pull parser equivalent of processDoc
+   */
+  private void processStream(final XMLStreamReader rdr) throws WebdavException {
+    if (!XmlRequestParser.nextElement(rdr) ||
+        !XmlRequestParser.matches(rdr, WebdavTags.propfind)) {
+      throw new WebdavBadRequest();
+    }
+
+    if (!XmlRequestParser.nextElement(rdr)) {
+      throw new WebdavBadRequest("No children");
+    }
+
+    final String ns = rdr.getNamespaceURI();
+
+    addNs(ns);
+
+    if (debug) {
+      debug("reqtype: " + rdr.getLocalName() + " ns: " + ns);
+    }
+
+    parsedReq = tryPropRequest(rdr);
+
+    if (XmlRequestParser.nextElement(rdr)) {
+      throw new WebdavBadRequest("Multiple children");
+    }
+  }
+
+  /** See if the parser is positioned at a valid propfind element
+   * and return with a request if so. Otherwise return null. On return the
+   * parser is positioned at the end of the element.
+   *
+   * @param rdr pull parser
+   * @return PropRequest
+   * @throws WebdavException on error
+   */
+  public PropRequest tryPropRequest(final XMLStreamReader rdr) throws WebdavException {
+    if (XmlRequestParser.matches(rdr, WebdavTags.prop)) {
+      return parseProps(rdr);
+    }
+
+    final PropRequest pr;
+
+    if (XmlRequestParser.matches(rdr, WebdavTags.allprop)) {
+      pr = new PropRequest(PropRequest.ReqType.propAll);
+    } else if (XmlRequestParser.matches(rdr, WebdavTags.propname)) {
+      pr = new PropRequest(PropRequest.ReqType.propName);
+    } else {
+      pr = null;
+    }
+
+    XmlRequestParser.skipElement(rdr);
+
+    return pr;
+  }
+
   /** See if the current node represents a valid propfind element
    * and return with a request if so. Otherwise return null.
    *
@@ -182,6 +382,20 @@ public class PropFindMethod extends MethodBase {
     return pr;
   }
 
+  /** Pull parser version of parseProps. On entry the parser is positioned
+   * at the start of the prop element, on return at its end.
+   *
+   * @param rdr pull parser
+   * @return PropRequest
+   * @throws WebdavException on error
+   */
+  public PropRequest parseProps(final XMLStreamReader rdr) throws WebdavException {
+    PropRequest pr = new PropRequest(PropRequest.ReqType.prop);
+    pr.props = getNsIntf().parseProp(rdr);
+
+    return pr;
+  }
+
   /**
    * @param req
    * @param resp
@@ -191,22 +405,61 @@ public class PropFindMethod extends MethodBase {
   public void processResp(final HttpServletRequest req,
                           final HttpServletResponse resp,
                           final int depth) throws WebdavException {
-    resp.setStatus(WebdavStatusCode.SC_MULTI_STATUS);
-    resp.setContentType("text/xml; charset=UTF-8");
-
-    startEmit(resp);
-
     String resourceUri = getResourceUri(req);
     if (debug) {
       debug("About to get node at " + resourceUri);
     }
 
+    final PropertyProjection projection = getProjection();
+
+    noSummaries = !summaryRequest();
+
+    requestDepth = depth;
+    walkStart = System.currentTimeMillis();
+    noRoot = omitRoot(req, depth);
+
+    /* Walk no further than the budget allows */
+    int maxDepth = depth;
+    if (budget.depthExceeded(depth)) {
+      maxDepth = budget.getMaxDepth();
+    }
+
     WebdavNsNode node = getNsIntf().getNode(resourceUri,
                                             WebdavNsIntf.existanceMust,
                                             WebdavNsIntf.nodeTypeUnknown,
-                                            false);
+                                            false,
+                                            projection);
+
+    if (budget.getPaginate()) {
+      skip = parseContinuation(
+              req.getHeader(TraversalBudget.continuationHeader),
+              resourceUri, node);
+    }
+
+    final String etag = getCollectionEtag(req, node, depth);
+
+    if (etag != null) {
+      resp.setHeader("ETag", etag);
+
+      if (etagMatches(Headers.ifNoneMatch(req), etag)) {
+        WebdavStats.inc(notModifiedCounter);
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+    }
+
+    resp.setStatus(WebdavStatusCode.SC_MULTI_STATUS);
+    resp.setContentType("text/xml; charset=UTF-8");
 
     addHeaders(req, resp, node);
+    addPreferenceApplied(req, resp);
+
+    if (cacheBody && (depth <= 1) && (skip == 0) &&
+            cachedResponse(req, resp, node, depth, requestBody)) {
+      return;
+    }
+
+    startEmit(resp);
 
     openTag(WebdavTags.multistatus);
 
@@ -220,12 +473,26 @@ public class PropFindMethod extends MethodBase {
 
       closeTag(WebdavTags.response);
     } else {
-      doNodeAndChildren(node, 0, depth);
+      final ChildPrefetcher pf = getChildPrefetcher(depth, projection);
+
+      try {
+        doNodeAndChildren(node, 0, maxDepth, projection, pf);
+      } finally {
+        if (pf != null) {
+          pf.close();
+        }
+      }
+
+      if ((stoppedBy != null) || depthLimited) {
+        doLimitResponse(node, resourceUri);
+      }
     }
 
     closeTag(WebdavTags.multistatus);
 
     flush();
+
+    saveCachedResponse(resp, (stoppedBy == null) && !depthLimited);
   }
 
   /** Generate response for a PROPFIND for the current node, then for the children.
@@ -276,24 +543,445 @@ public class PropFindMethod extends MethodBase {
 
   private void doNodeAndChildren(final WebdavNsNode node,
                                  int curDepth,
-                                 final int maxDepth) throws WebdavException {
-    openTag(WebdavTags.response);
+                                 final int maxDepth,
+                                 final PropertyProjection projection,
+                                 final ChildPrefetcher pf) throws WebdavException {
+    if ((curDepth == 0) && noRoot) {
+      // Left out for depth-noroot - not written so not counted
+    } else if (!admit()) {
+      if (stoppedBy != null) {
+        return;
+      }
+    } else {
+      if ((pf != null) && (curDepth < maxDepth) &&
+              !summariesFor(curDepth + 1, maxDepth)) {
+        // Fetch children while we write this one
+        pf.prefetch(node);
+      }
 
-    doNodeProperties(node, parsedReq);
+      openTag(WebdavTags.response);
 
-    closeTag(WebdavTags.response);
+      doNodeProperties(node, parsedReq);
 
-    flush();
+      closeTag(WebdavTags.response);
+
+      flush();
+    }
 
     curDepth++;
 
     if (curDepth > maxDepth) {
+      if ((curDepth <= requestDepth) && node.isCollection()) {
+        depthLimited = true;
+      }
       return;
     }
 
-    for (final WebdavNsNode child: getNsIntf().getChildren(node, null)) {
-      doNodeAndChildren(child, curDepth, maxDepth);
+    if (summariesFor(curDepth, maxDepth) && doChildSummaries(node)) {
+      return;
     }
+
+    if (pf != null) {
+      final Collection<WebdavNsNode> children = pf.getChildren(node);
+
+      if ((curDepth < maxDepth) &&
+              !summariesFor(curDepth + 1, maxDepth)) {
+        // Fetch the next level for all the siblings
+        pf.prefetch(children);
+      }
+
+      for (final WebdavNsNode child: children) {
+        if (stoppedBy != null) {
+          break;
+        }
+
+        doNodeAndChildren(child, curDepth, maxDepth, projection, pf);
+      }
+
+      return;
+    }
+
+    /* Take the children one at a time so large collections are not
+       held in memory */
+    final WdChildCursor cursor =
+            getNsIntf().getChildCursor(node, null, projection);
+
+    try {
+      while ((stoppedBy == null) && cursor.hasNext()) {
+        doNodeAndChildren(cursor.next(), curDepth, maxDepth,
+                          projection, null);
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /* A validator for the response built from the collection sync token,
+   * the request and the principal. Null if we can't make one - not a
+   * collection, sync not supported, more than one level or continuing.
+   */
+  private String getCollectionEtag(final HttpServletRequest req,
+                                   final WebdavNsNode node,
+                                   final int depth) throws WebdavException {
+    final WebdavServlet servlet = getNsIntf().getServlet();
+
+    if ((node == null) || (depth > 1) ||
+            (servlet == null) || !servlet.getPropfindEtags() ||
+            !node.isCollection() || !node.getExists() ||
+            (budget.getPaginate() &&
+                     (req.getHeader(TraversalBudget.continuationHeader) != null)) ||
+            !node.allowsSyncReport()) {
+      return null;
+    }
+
+    final String token = node.getSyncToken();
+
+    if (token == null) {
+      return null;
+    }
+
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+      for (final Object o: new Object[]{token,
+                                         depth,
+                                         getNsIntf().getAccount(),
+                                         hasBriefHeader,
+                                         noRoot,
+                                         parsedReq.reqType,
+                                         getProjection().getProperties(),
+                                         xml.getClass().getName()}) {
+        md.update(String.valueOf(o).getBytes(StandardCharsets.UTF_8));
+        md.update((byte)0);
+      }
+
+      final byte[] digest = md.digest();
+      final StringBuilder sb = new StringBuilder("W/\"");
+
+      for (int i = 0; i < 16; i++) {
+        sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(digest[i] & 0xf, 16));
+      }
+
+      return sb.append('"').toString();
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
+
+  /* Weak comparison against an If-None-Match value */
+  private static boolean etagMatches(final String ifNoneMatch,
+                                     final String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+
+    final String val = weak(etag);
+
+    for (final String s: ifNoneMatch.split(",")) {
+      final String tag = s.trim();
+
+      if (tag.equals("*") || weak(tag).equals(val)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static String weak(final String etag) {
+    if (etag.startsWith("W/")) {
+      return etag.substring(2);
+    }
+
+    return etag;
+  }
+
+  /* Returns true if the next response should be written. Sets stoppedBy
+   * when the budget is used up. We always write one response so that
+   * continuing makes progress.
+   */
+  private boolean admit() {
+    if (skip > 0) {
+      skip--;
+      position++;
+      return false;
+    }
+
+    if (written > 0) {
+      if (budget.nodesExceeded(written)) {
+        stop(TraversalBudget.nodesCounter);
+        return false;
+      }
+
+      if (budget.timeExceeded(System.currentTimeMillis() - walkStart)) {
+        stop(TraversalBudget.timeCounter);
+        return false;
+      }
+    }
+
+    position++;
+    written++;
+
+    return true;
+  }
+
+  private void stop(final String counter) {
+    stoppedBy = counter;
+    WebdavStats.inc(counter);
+  }
+
+  /* The response for the request URI saying the result is incomplete */
+  private void doLimitResponse(final WebdavNsNode node,
+                               final String resourceUri) throws WebdavException {
+    if ((stoppedBy == null) && depthLimited) {
+      WebdavStats.inc(TraversalBudget.depthCounter);
+    }
+
+    openTag(WebdavTags.response);
+    node.generateHref(xml);
+    addStatus(WebdavStatusCode.SC_INSUFFICIENT_STORAGE, null);
+
+    openTag(WebdavTags.error);
+    emptyTag(numberOfMatchesWithinLimits);
+    closeTag(WebdavTags.error);
+
+    if ((stoppedBy != null) && budget.getPaginate()) {
+      WebdavStats.inc(TraversalBudget.continuedCounter);
+      property(continuation, position + "-" + tokenCheck(resourceUri) +
+              "-" + changeCheck(node));
+    }
+
+    closeTag(WebdavTags.response);
+  }
+
+  /* Number of responses to skip. A token from before a change to the
+   * collection is refused - the positions no longer line up so the
+   * client must start again.
+   */
+  private int parseContinuation(final String token,
+                                final String resourceUri,
+                                final WebdavNsNode node) throws WebdavException {
+    if (token == null) {
+      return 0;
+    }
+
+    final String[] parts = token.split("-");
+    int val = -1;
+
+    try {
+      if ((parts.length == 3) &&
+              parts[1].equals(tokenCheck(resourceUri))) {
+        val = Integer.parseInt(parts[0]);
+      }
+    } catch (final NumberFormatException ignored) {
+    }
+
+    if (val < 0) {
+      throw new WebdavBadRequest("Invalid continuation token");
+    }
+
+    if (!parts[2].equals(changeCheck(node))) {
+      WebdavStats.inc(TraversalBudget.staleCounter);
+      throw new WebdavException(HttpServletResponse.SC_PRECONDITION_FAILED,
+                                "Collection changed - restart the PROPFIND");
+    }
+
+    return val;
+  }
+
+  /* Ties a token to the request it came from */
+  private String tokenCheck(final String resourceUri) {
+    return Integer.toHexString((resourceUri + "\n" + requestDepth + "\n" +
+                                        noRoot + "\n" +
+                                        parsedReq.getProjection(getNsIntf()))
+                                       .hashCode());
+  }
+
+  /* Changes when members are added or removed - the sync token if the
+   * collection has one, otherwise the etag.
+   */
+  private String changeCheck(final WebdavNsNode node) throws WebdavException {
+    if (node == null) {
+      return "0";
+    }
+
+    String marker = null;
+
+    if (node.allowsSyncReport()) {
+      marker = node.getSyncToken();
+    }
+
+    if (marker == null) {
+      marker = node.getEtagValue(true);
+    }
+
+    return Integer.toHexString(String.valueOf(marker).hashCode());
+  }
+
+  /* True if we may try summaries for the children of a node at depth */
+  private boolean summariesFor(final int depth,
+                               final int maxDepth) {
+    return !noSummaries && (depth == maxDepth);
+  }
+
+  /* True if only properties we can write from a summary are requested */
+  private boolean summaryRequest() {
+    if ((parsedReq == null) ||
+            (parsedReq.reqType != PropRequest.ReqType.prop) ||
+            Util.isEmpty(parsedReq.props)) {
+      return false;
+    }
+
+    for (final WebdavProperty pr: parsedReq.props) {
+      if (!summaryProps.contains(pr.getTag())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /* Write the responses for the children of a collection from summaries.
+   * Returns false if the namespace can't supply them.
+   */
+  private boolean doChildSummaries(final WebdavNsNode node) throws WebdavException {
+    if (!node.isCollection() || !node.getExists()) {
+      return false;
+    }
+
+    final Collection<WdChildSummary> sums =
+            getNsIntf().getChildSummaries(node);
+
+    if (sums == null) {
+      // Don't ask again for this request
+      noSummaries = true;
+      return false;
+    }
+
+    WebdavStats.inc(summariesCounter);
+
+    /* Prefix and encode the collection once */
+    String parent = node.getPrefixedUri();
+    if (!parent.endsWith("/")) {
+      parent += "/";
+    }
+
+    final String ok = getStatus(HttpServletResponse.SC_OK, null);
+    final String notFound =
+            getStatus(HttpServletResponse.SC_NOT_FOUND, null);
+
+    try {
+      for (final WdChildSummary sum: sums) {
+        if (!admit()) {
+          if (stoppedBy != null) {
+            break;
+          }
+
+          continue;
+        }
+
+        xml.openTag(WebdavTags.response);
+
+        final String name =
+                new URI(null, null, sum.getName(), null).toASCIIString();
+
+        if (sum.isCollection()) {
+          xml.property(WebdavTags.href, parent + name + "/");
+        } else {
+          xml.property(WebdavTags.href, parent + name);
+        }
+
+        /* As doPropFind - properties we can't supply go in a 404
+         * propstat unless return=minimal.
+         */
+        final List<QName> missing = new ArrayList<>();
+        boolean open = false;
+
+        for (final WebdavProperty pr: parsedReq.props) {
+          final QName tag = pr.getTag();
+
+          if (tag.equals(WebdavTags.getcontenttype) &&
+                  (sum.isCollection() || (sum.getContentType() == null))) {
+            missing.add(tag);
+            continue;
+          }
+
+          if (!open) {
+            xml.openTag(WebdavTags.propstat);
+            xml.openTag(WebdavTags.prop);
+            open = true;
+          }
+
+          if (tag.equals(WebdavTags.getetag)) {
+            xml.property(tag, sum.getEtag());
+          } else if (tag.equals(WebdavTags.resourcetype)) {
+            if (sum.isCollection()) {
+              xml.openTag(tag);
+              xml.emptyTag(WebdavTags.collection);
+              xml.closeTag(tag);
+            } else {
+              xml.emptyTag(tag);
+            }
+          } else {
+            xml.property(tag, sum.getContentType());
+          }
+        }
+
+        if (open) {
+          xml.closeTag(WebdavTags.prop);
+          xml.property(WebdavTags.status, ok);
+          xml.closeTag(WebdavTags.propstat);
+        }
+
+        if (!hasBriefHeader && !missing.isEmpty()) {
+          xml.openTag(WebdavTags.propstat);
+          xml.openTag(WebdavTags.prop);
+
+          for (final QName tag: missing) {
+            xml.emptyTag(tag);
+          }
+
+          xml.closeTag(WebdavTags.prop);
+          xml.property(WebdavTags.status, notFound);
+          xml.closeTag(WebdavTags.propstat);
+        } else if (!open && !getDropEmptyPropstat()) {
+          xml.openTag(WebdavTags.propstat);
+          xml.emptyTag(WebdavTags.prop);
+          xml.property(WebdavTags.status, ok);
+          xml.closeTag(WebdavTags.propstat);
+        }
+
+        xml.closeTag(WebdavTags.response);
+
+        xml.flush();
+      }
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+
+    return true;
+  }
+
+  /* What the parsed request asks for */
+  private PropertyProjection getProjection() {
+    if (parsedReq == null) {
+      return PropertyProjection.all;
+    }
+
+    return parsedReq.getProjection(getNsIntf());
+  }
+
+  /* Null unless enabled and there is more than one level */
+  private ChildPrefetcher getChildPrefetcher(final int depth,
+                                            final PropertyProjection projection) {
+    final WebdavServlet servlet = getNsIntf().getServlet();
+
+    if ((servlet == null) || (depth <= 0)) {
+      return null;
+    }
+
+    return servlet.getChildPrefetcher(getNsIntf(), projection);
   }
 
   /* Build the response for a single node for a propnames request
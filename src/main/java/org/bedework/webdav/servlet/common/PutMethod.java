@@ -44,7 +44,7 @@ public class PutMethod extends MethodBase {
 
     final WebdavNsIntf intf = getNsIntf();
 
-    final IfHeaders ifHeaders = Headers.processIfHeaders(req);
+    final IfHeaders ifHeaders = getRequestContext(req).getIfHeaders();
     if ((ifHeaders.ifHeader != null) &&
         !intf.syncTokenMatch(ifHeaders.ifHeader)) {
       intf.rollback();
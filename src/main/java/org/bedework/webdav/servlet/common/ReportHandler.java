@@ -0,0 +1,55 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import org.w3c.dom.Element;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Handles one kind of REPORT. A new handler is created by its
+ * ReportRegistry factory for each request.
+ *
+ * <p>process should write each response element as it is found - taking
+ * results from a cursor or the backend one at a time where it can - and
+ * not build the whole result first.
+ */
+public interface ReportHandler {
+  /** Parse the request.
+   *
+   * @param root element of the request body
+   * @param depth from the Depth header - 0 if absent
+   * @throws WebdavException on a bad request or error
+   */
+  void parse(Element root,
+             int depth) throws WebdavException;
+
+  /** Write the response.
+   *
+   * @param req http request
+   * @param resp http response
+   * @param depth from the Depth header - 0 if absent
+   * @throws WebdavException on error
+   */
+  void process(HttpServletRequest req,
+               HttpServletResponse resp,
+               int depth) throws WebdavException;
+}
@@ -23,6 +23,7 @@ import org.bedework.util.xml.XmlUtil;
 import org.bedework.util.xml.tagdefs.WebdavTags;
 import org.bedework.webdav.servlet.common.PropFindMethod.PropRequest;
 import org.bedework.webdav.servlet.shared.PrincipalPropertySearch;
+import org.bedework.webdav.servlet.shared.PropertyProjection;
 import org.bedework.webdav.servlet.shared.WdSynchReport;
 import org.bedework.webdav.servlet.shared.WebdavBadRequest;
 import org.bedework.webdav.servlet.shared.WebdavException;
@@ -34,35 +35,56 @@ import org.bedework.webdav.servlet.shared.WebdavStatusCode;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.io.StringReader;
 import java.util.Collection;
+import java.util.function.Function;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /** Class called to handle POST
  *
  *   @author Mike Douglass   douglm   rpi.edu
  */
 public class ReportMethod extends MethodBase {
-  private final static int reportTypeExpandProperty = 0;
-  private final static int reportTypePrincipalPropertySearch = 1;
-  private final static int reportTypePrincipalMatch = 2;
-  private final static int reportTypeAclPrincipalPropSet = 3;
-  private final static int reportTypePrincipalSearchPropertySet = 4;
-  private final static int reportTypeSync = 5;
-
-  private int reportType;
+  private static final ReportRegistry reports = new ReportRegistry();
+
+  /* Compared with the registered factory to see if we can pull parse */
+  private static final Function<ReportMethod, ReportHandler> syncFactory =
+          SyncCollectionReport::new;
+
+  static {
+    reports.add(WebdavTags.expandProperty, ExpandPropertyReport::new);
+    reports.add(WebdavTags.syncCollection, syncFactory);
+    reports.add(WebdavTags.principalPropertySearch,
+                PrincipalPropertySearchReport::new);
+    reports.add(WebdavTags.principalMatch,
+                rm -> new PrincipalMatchReport(rm, rm.getNsIntf()));
+    reports.add(WebdavTags.aclPrincipalPropSet,
+                AclPrincipalPropSetReport::new);
+    reports.add(WebdavTags.principalSearchPropertySet,
+                PrincipalSearchPropertySetReport::new);
+    reports.add(MultigetReport.resourceMultiget, MultigetReport::new);
+  }
 
-  private PrincipalMatchReport pmatch;
+  /* Handler for this request */
+  private ReportHandler handler;
 
   private PrincipalPropertySearch pps;
 
   protected PropFindMethod.PropRequest preq;
 
+  /** Set by doMethod before the report is processed */
   protected PropFindMethod pm;
 
   private PropRequest propReq;
 
+  private String requestBody;
+
   private String syncToken;
 
   private int syncLevel;
@@ -75,6 +97,40 @@ public class ReportMethod extends MethodBase {
   public void init() {
   }
 
+  /** The PROPFIND method parses and writes properties for the reports
+   * which have them.
+   *
+   * @return the PROPFIND method for this request
+   * @throws WebdavException on error
+   */
+  public PropFindMethod getPropFindMethod() throws WebdavException {
+    if (pm == null) {
+      pm = new PropFindMethod();
+      pm.init(getNsIntf(), true);
+
+      /* Property values are written by the PROPFIND method */
+      pm.hasBriefHeader = hasBriefHeader;
+    }
+
+    return pm;
+  }
+
+  /**
+   * @return the reports handled by this class
+   */
+  public static ReportRegistry getReports() {
+    return reports;
+  }
+
+  /** Subclasses handling other reports override this to return their
+   * own registry.
+   *
+   * @return the reports handled by this method
+   */
+  protected ReportRegistry getReportRegistry() {
+    return reports;
+  }
+
   @Override
   public void doMethod(final HttpServletRequest req,
                        final HttpServletResponse resp) throws WebdavException {
@@ -82,31 +138,34 @@ public class ReportMethod extends MethodBase {
       debug("ReportMethod: doMethod");
     }
 
-    /* Get hold of the PROPFIND method instance - we need it to process
-       possible prop requests.
-     */
-    /*
-    pm = (PropFindMethod)getNsIntf().getMethod("PROPFIND");
+    final String body = readContent(req);
 
-    if (pm == null) {
-      throw new WebdavException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    if (body == null) {
+      return;
     }
-    */
-    pm = new PropFindMethod();
-    pm.init(getNsIntf(), true);
 
-    Document doc = parseContent(req, resp);
+    requestBody = body;
 
-    if (doc == null) {
-      return;
-    }
+    /* Subclasses overriding process use pm directly */
+    getPropFindMethod();
 
-    int depth = Headers.depth(req, 0);
+    int depth = getRequestContext(req).getDepth(0);
 
     if (debug) {
       debug("ReportMethod: depth=" + depth);
     }
 
+    if (getNsIntf().getPullParseProps() &&
+        processStream(body, depth, req, resp)) {
+      return;
+    }
+
+    Document doc = parseContent(body.length(), new StringReader(body));
+
+    if (doc == null) {
+      return;
+    }
+
     process(doc, depth, req, resp);
   }
 
@@ -119,13 +178,23 @@ public class ReportMethod extends MethodBase {
                          final int depth,
                          final HttpServletRequest req,
                          final HttpServletResponse resp) throws WebdavException {
-    reportType = getReportType(doc);
+    final Element root = doc.getDocumentElement();
+
+    handler = getReportRegistry().getHandler(getName(root), this);
 
-    if (reportType < 0) {
+    if (handler == null) {
       throw new WebdavBadRequest();
     }
 
-    processDoc(doc, depth);
+    try {
+      handler.parse(root, depth);
+    } catch (final WebdavException wde) {
+      throw wde;
+    } catch (final Throwable t) {
+      error(t);
+
+      throw new WebdavException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
 
     processResp(req, resp, depth);
   }
@@ -142,7 +211,7 @@ public class ReportMethod extends MethodBase {
 
       addStatus(status, null);
     } else {
-      pm.doNodeProperties(node, preq);
+      getPropFindMethod().doNodeProperties(node, preq);
     }
 
     closeTag(WebdavTags.response);
@@ -154,67 +223,194 @@ public class ReportMethod extends MethodBase {
    *                   Private methods
    * ==================================================================== */
 
-  /* We process the parsed document and produce a Collection of request
-   * objects to process.
+  /* Try to handle the request with the pull parser. At the moment only the
+   * sync-collection report is handled this way - and only if it has not
+   * been replaced in the registry.
    *
-   * @param doc
-   * @throws WebdavException
+   * @return true if we handled it
+   */
+  private boolean processStream(final String body,
+                                final int depth,
+                                final HttpServletRequest req,
+                                final HttpServletResponse resp) throws WebdavException {
+    if (getReportRegistry().getFactory(WebdavTags.syncCollection) !=
+            syncFactory) {
+      return false;
+    }
+
+    final RequestTemplateCache cache = getTemplateCache();
+    RequestTemplateCache.Template t = null;
+
+    if (cache != null) {
+      t = cache.get(body);
+    }
+
+    if ((t != null) && t.getRoot().equals(WebdavTags.syncCollection)) {
+      for (final String ns: t.getNamespaces()) {
+        addNs(ns);
+      }
+
+      handler = new SyncCollectionReport(this);
+      syncToken = t.getSyncToken();
+      syncLimit = t.getSyncLimit();
+      setSyncLevel(t.getSyncLevel(), depth);
+      propReq = t.getPropRequest();
+    } else {
+      final XMLStreamReader rdr =
+              XmlRequestParser.getStreamReader(new StringReader(body),
+                                               getXmlLimits());
+      final int lvl;
+
+      try {
+        if (!XmlRequestParser.nextElement(rdr)) {
+          throw new WebdavBadRequest();
+        }
+
+        if (!XmlRequestParser.matches(rdr, WebdavTags.syncCollection)) {
+          return false;
+        }
+
+        handler = new SyncCollectionReport(this);
+        lvl = parseSyncReport(rdr, depth);
+      } finally {
+        XmlRequestParser.close(rdr);
+      }
+
+      if (cache != null) {
+        cache.put(body,
+                  new RequestTemplateCache.Template(WebdavTags.syncCollection,
+                                                    propReq,
+                                                    syncToken,
+                                                    lvl,
+                                                    syncLimit));
+      }
+    }
+
+    processResp(req, resp, depth);
+
+    return true;
+  }
+
+  /* Pull parser version of parseSyncReport. The parser is positioned at
+   * the start of the sync-collection element.
+   *
+   * Returns the sync-level from the body or depthNone if absent.
    */
-  private void processDoc(final Document doc,
-                          int depth) throws WebdavException {
+  private int parseSyncReport(final XMLStreamReader rdr,
+                              final int depth) throws WebdavException {
     try {
-      WebdavNsIntf intf = getNsIntf();
+      if (!XmlRequestParser.nextElement(rdr)) {
+        throw new WebdavBadRequest("Expect 2 - 4 child elements");
+      }
 
-      Element root = doc.getDocumentElement();
+      if (!XmlRequestParser.matches(rdr, WebdavTags.syncToken)) {
+        throw new WebdavBadRequest("Expect " + WebdavTags.syncToken);
+      }
 
-      if (reportType == reportTypeSync) {
-        parseSyncReport(root, depth, intf);
+      syncToken = XmlRequestParser.getElementText(rdr);
 
-        return;
+      int children = 1;
+      int bodyLevel = Headers.depthNone;
+      syncLimit = -1;
+
+      if (!XmlRequestParser.nextElement(rdr)) {
+        throw new WebdavBadRequest("Expect 2 - 4 child elements");
       }
+      children++;
 
-      if (reportType == reportTypeAclPrincipalPropSet) {
-        depth = defaultDepth(depth, 0);
-        checkDepth(depth, 0);
-        parseAclPrincipalProps(root, intf);
-        return;
+      if (XmlRequestParser.matches(rdr, WebdavTags.synclevel)) {
+        final String lvl = XmlRequestParser.getElementText(rdr);
+
+        if (lvl.equals("1")) {
+          bodyLevel = 1;
+        } else if (lvl.equals("infinity")) {
+          bodyLevel = Headers.depthInfinity;
+        } else {
+          throw new WebdavBadRequest("Bad sync-level " + lvl);
+        }
+
+        if (!XmlRequestParser.nextElement(rdr)) {
+          throw new WebdavBadRequest("Expect " + WebdavTags.prop);
+        }
+        children++;
       }
 
-      if (reportType == reportTypeExpandProperty) {
-        return;
+      setSyncLevel(bodyLevel, depth);
+
+      if (XmlRequestParser.matches(rdr, WebdavTags.limit)) {
+        syncLimit = parseLimit(rdr);
+
+        if (!XmlRequestParser.nextElement(rdr)) {
+          throw new WebdavBadRequest("Expect " + WebdavTags.prop);
+        }
+        children++;
       }
 
-      if (reportType == reportTypePrincipalSearchPropertySet) {
-        return;
+      if (!XmlRequestParser.matches(rdr, WebdavTags.prop)) {
+        throw new WebdavBadRequest("Expect " + WebdavTags.prop);
       }
 
-      if (reportType == reportTypePrincipalMatch) {
-        depth = defaultDepth(depth, 0);
-        checkDepth(depth, 0);
-        pmatch = new PrincipalMatchReport(this, intf);
+      propReq = getPropFindMethod().parseProps(rdr);
 
-        pmatch.parse(root, depth);
-        return;
+      while (XmlRequestParser.nextElement(rdr)) {
+        children++;
+        XmlRequestParser.skipElement(rdr);
       }
 
-      if (reportType == reportTypePrincipalPropertySearch) {
-        depth = defaultDepth(depth, 0);
-        checkDepth(depth, 0);
-        parsePrincipalPropertySearch(root, depth, intf);
-        return;
+      if (children > 4) {
+        throw new WebdavBadRequest("Expect 2 - 4 child elements");
       }
 
-      throw new WebdavBadRequest();
-    } catch (WebdavException wde) {
-      throw wde;
-    } catch (Throwable t) {
-      System.err.println(t.getMessage());
-      if (debug) {
-        t.printStackTrace();
+      return bodyLevel;
+    } catch (final NumberFormatException nfe) {
+      throw new WebdavBadRequest("Invalid value");
+    }
+  }
+
+  /* Use the sync-level from the body if present, otherwise the depth.
+   */
+  private void setSyncLevel(final int bodyLevel,
+                            final int depth) throws WebdavException {
+    if (bodyLevel != Headers.depthNone) {
+      syncLevel = bodyLevel;
+    } else {
+      // Cope with back-level clients
+      if ((depth != Headers.depthInfinity) && (depth != 1)) {
+        throw new WebdavBadRequest("Bad depth");
       }
 
-      throw new WebdavException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      syncLevel = depth;
     }
+
+    syncRecurse = syncLevel == Headers.depthInfinity;
+  }
+
+  /* The limit element either holds the value or, as in rfc 6578, an
+   * nresults element holding the value.
+   */
+  private int parseLimit(final XMLStreamReader rdr) throws WebdavException {
+    final StringBuilder sb = new StringBuilder();
+
+    try {
+      int level = 1;
+
+      while (level > 0) {
+        final int ev = rdr.next();
+
+        if (ev == XMLStreamConstants.START_ELEMENT) {
+          level++;
+        } else if (ev == XMLStreamConstants.END_ELEMENT) {
+          level--;
+        } else if ((ev == XMLStreamConstants.CHARACTERS) ||
+                   (ev == XMLStreamConstants.CDATA)) {
+          sb.append(rdr.getText());
+        }
+      }
+    } catch (final XMLStreamException xse) {
+      throw new WebdavBadRequest();
+    }
+
+    return Integer.valueOf(sb.toString().trim());
   }
 
   /*
@@ -237,7 +433,7 @@ public class ReportMethod extends MethodBase {
           if (hadProp) {
             throw new WebdavBadRequest("More than one DAV:prop element");
           }
-          propReq = pm.parseProps(curnode);
+          propReq = getPropFindMethod().parseProps(curnode);
 
           hadProp = true;
         }
@@ -305,7 +501,7 @@ public class ReportMethod extends MethodBase {
         throw new WebdavBadRequest("Expect " + WebdavTags.prop);
       }
 
-      propReq = pm.parseProps(children[childI]);
+      propReq = getPropFindMethod().parseProps(children[childI]);
 
     } catch (NumberFormatException nfe) {
       throw new WebdavBadRequest("Invalid value");
@@ -372,7 +568,7 @@ public class ReportMethod extends MethodBase {
             }
           }
         } else if (XmlUtil.nodeMatches(curnode, WebdavTags.prop)) {
-          pps.pr = pm.parseProps(curnode);
+          pps.pr = getPropFindMethod().parseProps(curnode);
           preq = pps.pr;
           i++;
 
@@ -413,43 +609,9 @@ public class ReportMethod extends MethodBase {
   private void processResp(final HttpServletRequest req,
                            final HttpServletResponse resp,
                            final int depth) throws WebdavException {
-    WebdavNsIntf intf = getNsIntf();
-
-    if (reportType == reportTypeSync) {
-      processSyncReport(req, resp, intf);
-      return;
-    }
-
-    /* Build a collection of nodes for any user principals in the acl
-     * associated with the resource.
-     */
-
-    if (reportType == reportTypeAclPrincipalPropSet) {
-      processAclPrincipalPropSet(req, resp, intf);
-      return;
-    }
-
-    if (reportType == reportTypePrincipalSearchPropertySet) {
-      return;
-    }
-
-    if (reportType == reportTypeExpandProperty) {
-      processExpandProperty(req, resp, depth, intf);
-      return;
-    }
-
-    if (reportType == reportTypePrincipalMatch) {
-      pmatch.process(req, resp, defaultDepth(depth, 0));
-      return;
-    }
-
-    if (reportType == reportTypePrincipalPropertySearch) {
-      processPrincipalPropertySearch(req, resp,
-                                     defaultDepth(depth, 0), intf);
-      return;
-    }
+    addPreferenceApplied(req, resp);
 
-    throw new WebdavBadRequest();
+    handler.process(req, resp, depth);
   }
 
   /**
@@ -478,11 +640,29 @@ public class ReportMethod extends MethodBase {
   private void processSyncReport(final HttpServletRequest req,
                                  final HttpServletResponse resp,
                                  final WebdavNsIntf intf) throws WebdavException {
+    /* The sync token of the collection doesn't cover changes in
+     * sub-collections so only level 1 responses can be cached.
+     */
+    if ((getResponseCache() != null) && (syncLevel == 1)) {
+      final WebdavNsNode node =
+              intf.getNode(getResourceUri(req),
+                           WebdavNsIntf.existanceMust,
+                           WebdavNsIntf.nodeTypeCollection,
+                           false,
+                           getProjection());
+
+      if (cachedResponse(req, resp, node, syncLevel, requestBody)) {
+        return;
+      }
+    }
+
     final WdSynchReport wsr = intf.getSynchReport(getResourceUri(req),
                                                   syncToken,
                                                   syncLimit,
-                                                  syncRecurse);
+                                                  syncRecurse,
+                                                  getProjection());
     if (wsr == null) {
+      saveCachedResponse(resp, false);
       resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
@@ -505,7 +685,7 @@ public class ReportMethod extends MethodBase {
             wsri.getNode().generateHref(xml);
             addStatus(HttpServletResponse.SC_NOT_FOUND, null);
           } else {
-            pm.doNodeProperties(wsri.getNode(), propReq);
+            getPropFindMethod().doNodeProperties(wsri.getNode(), propReq);
           }
         } else {
           wsri.getNode().generateHref(xml);
@@ -522,6 +702,8 @@ public class ReportMethod extends MethodBase {
     closeTag(WebdavTags.multistatus);
 
     flush();
+
+    saveCachedResponse(resp, true);
   }
 
   private void processAclPrincipalPropSet(final HttpServletRequest req,
@@ -548,9 +730,10 @@ public class ReportMethod extends MethodBase {
         WebdavNsNode pnode = getNsIntf().getNode(getNsIntf().getUri(href),
                                                  WebdavNsIntf.existanceMay,
                                                  WebdavNsIntf.nodeTypePrincipal,
-                                                 false);
+                                                 false,
+                                                 getProjection());
         if (pnode != null) {
-          pm.doNodeProperties(pnode, propReq);
+          getPropFindMethod().doNodeProperties(pnode, propReq);
         }
       }
 
@@ -594,49 +777,128 @@ public class ReportMethod extends MethodBase {
     flush();
   }
 
-  /** See if we recognize this report type and return an index.
-   *
-   * @param doc
-   * @return index or <0 for unknown.
-   * @throws WebdavException
-   */
-  private int getReportType(final Document doc) throws WebdavException {
-    try {
-      Element root = doc.getDocumentElement();
+  /* What the parsed request asks for */
+  private PropertyProjection getProjection() {
+    if (propReq == null) {
+      return PropertyProjection.all;
+    }
 
-      if (XmlUtil.nodeMatches(root, WebdavTags.expandProperty)) {
-        return reportTypeExpandProperty;
-      }
+    return propReq.getProjection(getNsIntf());
+  }
 
-      if (XmlUtil.nodeMatches(root, WebdavTags.syncCollection)) {
-        return reportTypeSync;
-      }
+  private static QName getName(final Element el) {
+    String name = el.getLocalName();
 
-      if (XmlUtil.nodeMatches(root, WebdavTags.principalPropertySearch)) {
-        return reportTypePrincipalPropertySearch;
-      }
+    if (name == null) {
+      name = el.getNodeName();
+    }
 
-      if (XmlUtil.nodeMatches(root, WebdavTags.principalMatch)) {
-        return reportTypePrincipalMatch;
-      }
+    return new QName(el.getNamespaceURI(), name);
+  }
 
-      if (XmlUtil.nodeMatches(root, WebdavTags.aclPrincipalPropSet)) {
-        return reportTypeAclPrincipalPropSet;
-      }
+  /* ====================================================================
+   *                   Built in reports
+   * ==================================================================== */
 
-      if (XmlUtil.nodeMatches(root, WebdavTags.principalSearchPropertySet)) {
-        return reportTypePrincipalSearchPropertySet;
-      }
+  /* The built in reports keep their state in the method */
+  private abstract static class BuiltinReport implements ReportHandler {
+    final ReportMethod rm;
 
-      return -1;
-    } catch (Throwable t) {
-      System.err.println(t.getMessage());
-      if (debug) {
-        t.printStackTrace();
-      }
+    BuiltinReport(final ReportMethod rm) {
+      this.rm = rm;
+    }
 
-      throw new WebdavException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    @Override
+    public void parse(final Element root,
+                      final int depth) throws WebdavException {
+    }
+  }
+
+  private static class ExpandPropertyReport extends BuiltinReport {
+    ExpandPropertyReport(final ReportMethod rm) {
+      super(rm);
+    }
+
+    @Override
+    public void process(final HttpServletRequest req,
+                        final HttpServletResponse resp,
+                        final int depth) throws WebdavException {
+      rm.processExpandProperty(req, resp, depth, rm.getNsIntf());
+    }
+  }
+
+  private static class SyncCollectionReport extends BuiltinReport {
+    SyncCollectionReport(final ReportMethod rm) {
+      super(rm);
+    }
+
+    @Override
+    public void parse(final Element root,
+                      final int depth) throws WebdavException {
+      rm.parseSyncReport(root, depth, rm.getNsIntf());
+    }
+
+    @Override
+    public void process(final HttpServletRequest req,
+                        final HttpServletResponse resp,
+                        final int depth) throws WebdavException {
+      rm.processSyncReport(req, resp, rm.getNsIntf());
+    }
+  }
+
+  private static class PrincipalPropertySearchReport extends BuiltinReport {
+    PrincipalPropertySearchReport(final ReportMethod rm) {
+      super(rm);
+    }
+
+    @Override
+    public void parse(final Element root,
+                      final int depth) throws WebdavException {
+      final int d = rm.defaultDepth(depth, 0);
+      rm.checkDepth(d, 0);
+      rm.parsePrincipalPropertySearch(root, d, rm.getNsIntf());
+    }
+
+    @Override
+    public void process(final HttpServletRequest req,
+                        final HttpServletResponse resp,
+                        final int depth) throws WebdavException {
+      rm.processPrincipalPropertySearch(req, resp,
+                                        rm.defaultDepth(depth, 0),
+                                        rm.getNsIntf());
     }
   }
-}
 
+  private static class AclPrincipalPropSetReport extends BuiltinReport {
+    AclPrincipalPropSetReport(final ReportMethod rm) {
+      super(rm);
+    }
+
+    @Override
+    public void parse(final Element root,
+                      final int depth) throws WebdavException {
+      rm.checkDepth(rm.defaultDepth(depth, 0), 0);
+      rm.parseAclPrincipalProps(root, rm.getNsIntf());
+    }
+
+    @Override
+    public void process(final HttpServletRequest req,
+                        final HttpServletResponse resp,
+                        final int depth) throws WebdavException {
+      rm.processAclPrincipalPropSet(req, resp, rm.getNsIntf());
+    }
+  }
+
+  /* Not implemented - no response */
+  private static class PrincipalSearchPropertySetReport extends BuiltinReport {
+    PrincipalSearchPropertySetReport(final ReportMethod rm) {
+      super(rm);
+    }
+
+    @Override
+    public void process(final HttpServletRequest req,
+                        final HttpServletResponse resp,
+                        final int depth) {
+    }
+  }
+}
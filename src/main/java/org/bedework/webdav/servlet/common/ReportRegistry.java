@@ -0,0 +1,112 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.xml.namespace.QName;
+
+/** Maps the name of the root element of a REPORT body to a factory for
+ * the handler.
+ *
+ * <p>A subclass of ReportMethod creates a registry from its parent's and
+ * adds or replaces entries, for example
+ * <pre>
+ *   private static final ReportRegistry reports =
+ *         new ReportRegistry(ReportMethod.getReports());
+ *
+ *   static {
+ *     reports.add(MyTags.myReport, rm -&gt; new MyReport(rm));
+ *   }
+ * </pre>
+ * and overrides getReportRegistry. Registries are filled in by static
+ * initializers and are read only after.
+ */
+public class ReportRegistry {
+  private final Map<QName, Function<ReportMethod, ? extends ReportHandler>>
+          factories = new HashMap<>();
+
+  /** An empty registry
+   */
+  public ReportRegistry() {
+  }
+
+  /** A registry starting with the entries of another
+   *
+   * @param parent registry of a superclass
+   */
+  public ReportRegistry(final ReportRegistry parent) {
+    factories.putAll(parent.factories);
+  }
+
+  /** Add or replace a report.
+   *
+   * @param tag name of the root element
+   * @param factory creates a handler for a request
+   */
+  public void add(final QName tag,
+                  final Function<ReportMethod, ? extends ReportHandler> factory) {
+    factories.put(tag, factory);
+  }
+
+  /**
+   * @param tag name of the root element
+   * @return true if the report is registered
+   */
+  public boolean isKnown(final QName tag) {
+    return factories.containsKey(tag);
+  }
+
+  /**
+   * @return read only set of registered report names
+   */
+  public Set<QName> getReports() {
+    return Collections.unmodifiableSet(factories.keySet());
+  }
+
+  /**
+   * @param tag name of the root element
+   * @return the registered factory or null if unknown
+   */
+  public Function<ReportMethod, ? extends ReportHandler> getFactory(
+          final QName tag) {
+    return factories.get(tag);
+  }
+
+  /**
+   * @param tag name of the root element
+   * @param rm the method handling the request
+   * @return a new handler or null if unknown
+   */
+  public ReportHandler getHandler(final QName tag,
+                                  final ReportMethod rm) {
+    final Function<ReportMethod, ? extends ReportHandler> factory =
+            getFactory(tag);
+
+    if (factory == null) {
+      return null;
+    }
+
+    return factory.apply(rm);
+  }
+}
@@ -0,0 +1,331 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.common.PropFindMethod.PropRequest;
+import org.bedework.webdav.servlet.shared.WebdavProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+/** Cache of parsed request bodies. Clients send the same PROPFIND and
+ * sync-collection bodies over and over. We keep an immutable form of the
+ * parsed request keyed by the body and build the request objects from that
+ * when we see the same body again.
+ *
+ * <p>The cache is split into stripes by the hash of the body, each an
+ * access ordered map with its own lock and an equal share of the bound.
+ * Requests for different bodies rarely contend and the least recently
+ * used body in a stripe is dropped when it is full.
+ */
+public class RequestTemplateCache {
+  /** Name of counter for cache hits */
+  public static final String hitsCounter = "requestTemplateCache.hits";
+
+  /** Name of counter for cache misses */
+  public static final String missesCounter = "requestTemplateCache.misses";
+
+  /* Most stripes we use */
+  private static final int maxStripes = 16;
+
+  private final int maxBodyLength;
+
+  /* Each access ordered and bounded - locked on itself */
+  private final LinkedHashMap<String, Template>[] stripes;
+
+  /** A property name with its attributes
+   */
+  private static class PropTemplate {
+    final QName tag;
+    final String[] attrNames;
+    final String[] attrVals;
+
+    PropTemplate(final WebdavProperty prop) {
+      tag = prop.getTag();
+
+      final int sz;
+      if (prop.hasAttrs()) {
+        sz = prop.getAttrs().size();
+      } else {
+        sz = 0;
+      }
+
+      attrNames = new String[sz];
+      attrVals = new String[sz];
+
+      for (int i = 0; i < sz; i++) {
+        final WebdavProperty.Attribute attr = prop.getAttrs().get(i);
+
+        attrNames[i] = attr.name;
+        attrVals[i] = attr.value;
+      }
+    }
+
+    WebdavProperty makeProp() {
+      final WebdavProperty prop = new WebdavProperty(tag, null);
+
+      for (int i = 0; i < attrNames.length; i++) {
+        prop.addAttr(attrNames[i], attrVals[i]);
+      }
+
+      return prop;
+    }
+  }
+
+  /** Immutable parsed request
+   */
+  public static class Template {
+    private final QName root;
+
+    private final PropRequest.ReqType reqType;
+
+    private final List<PropTemplate> props;
+
+    private final Set<String> namespaces;
+
+    private final String syncToken;
+
+    private final int syncLevel;
+
+    private final int syncLimit;
+
+    /**
+     * @param root element of the request
+     * @param pr parsed prop request
+     */
+    public Template(final QName root,
+                    final PropRequest pr) {
+      this(root, pr, null, Headers.depthNone, -1);
+    }
+
+    /**
+     * @param root element of the request
+     * @param pr parsed prop request
+     * @param syncToken from the sync report
+     * @param syncLevel from the sync report - depthNone if absent
+     * @param syncLimit from the sync report - -1 if absent
+     */
+    public Template(final QName root,
+                    final PropRequest pr,
+                    final String syncToken,
+                    final int syncLevel,
+                    final int syncLimit) {
+      this.root = root;
+      reqType = pr.reqType;
+      this.syncToken = syncToken;
+      this.syncLevel = syncLevel;
+      this.syncLimit = syncLimit;
+
+      final Set<String> nss = new LinkedHashSet<>();
+      nss.add(root.getNamespaceURI());
+
+      if (pr.props == null) {
+        props = null;
+      } else {
+        final List<PropTemplate> pts = new ArrayList<>(pr.props.size());
+
+        for (final WebdavProperty prop: pr.props) {
+          pts.add(new PropTemplate(prop));
+          nss.add(prop.getTag().getNamespaceURI());
+        }
+
+        props = Collections.unmodifiableList(pts);
+      }
+
+      namespaces = Collections.unmodifiableSet(nss);
+    }
+
+    /**
+     * @return root element of the request
+     */
+    public QName getRoot() {
+      return root;
+    }
+
+    /**
+     * @return namespaces seen while parsing
+     */
+    public Set<String> getNamespaces() {
+      return namespaces;
+    }
+
+    /**
+     * @return sync token from a sync report
+     */
+    public String getSyncToken() {
+      return syncToken;
+    }
+
+    /**
+     * @return sync level from a sync report - depthNone if absent
+     */
+    public int getSyncLevel() {
+      return syncLevel;
+    }
+
+    /**
+     * @return limit from a sync report - -1 if absent
+     */
+    public int getSyncLimit() {
+      return syncLimit;
+    }
+
+    /**
+     * @return a new request object built from this template
+     */
+    public PropRequest getPropRequest() {
+      final PropRequest pr = new PropRequest(reqType);
+
+      if (props != null) {
+        pr.props = new ArrayList<>(props.size());
+
+        for (final PropTemplate pt: props) {
+          pr.props.add(pt.makeProp());
+        }
+      }
+
+      return pr;
+    }
+  }
+
+  /**
+   * @param maxEntries maximum number of bodies cached
+   * @param maxBodyLength larger bodies are not cached
+   */
+  public RequestTemplateCache(final int maxEntries,
+                              final int maxBodyLength) {
+    this.maxBodyLength = maxBodyLength;
+
+    /* No more stripes than entries so each holds at least one and the
+     * total stays within maxEntries
+     */
+    final int n = Math.max(0, Math.min(maxStripes, maxEntries));
+    final int perStripe;
+    if (n == 0) {
+      perStripe = 0;
+    } else {
+      perStripe = maxEntries / n;
+    }
+
+    stripes = newStripes(n);
+
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<String, Template> eldest) {
+          return size() > perStripe;
+        }
+      };
+    }
+  }
+
+  /**
+   * @param body of request
+   * @return template or null
+   */
+  public Template get(final String body) {
+    final String key = key(body);
+
+    if (key == null) {
+      return null;
+    }
+
+    final Template t;
+
+    if (stripes.length == 0) {
+      t = null;
+    } else {
+      final LinkedHashMap<String, Template> stripe = stripeFor(key);
+
+      synchronized (stripe) {
+        t = stripe.get(key);
+      }
+    }
+
+    if (t == null) {
+      WebdavStats.inc(missesCounter);
+    } else {
+      WebdavStats.inc(hitsCounter);
+    }
+
+    return t;
+  }
+
+  /**
+   * @param body of request
+   * @param t the parsed template
+   */
+  public void put(final String body,
+                  final Template t) {
+    final String key = key(body);
+
+    if ((key == null) || (stripes.length == 0)) {
+      return;
+    }
+
+    final LinkedHashMap<String, Template> stripe = stripeFor(key);
+
+    synchronized (stripe) {
+      stripe.put(key, t);
+    }
+  }
+
+  /**
+   * @return number of cached templates
+   */
+  public int size() {
+    int sz = 0;
+
+    for (final LinkedHashMap<String, Template> stripe: stripes) {
+      synchronized (stripe) {
+        sz += stripe.size();
+      }
+    }
+
+    return sz;
+  }
+
+  private LinkedHashMap<String, Template> stripeFor(final String key) {
+    final int h = key.hashCode();
+
+    return stripes[((h ^ (h >>> 16)) & 0x7fffffff) % stripes.length];
+  }
+
+  @SuppressWarnings("unchecked")
+  private static LinkedHashMap<String, Template>[] newStripes(final int n) {
+    return (LinkedHashMap<String, Template>[])new LinkedHashMap[n];
+  }
+
+  /* Leading and trailing white space is the only difference we ignore. */
+  private String key(final String body) {
+    if ((body == null) || (body.length() > maxBodyLength)) {
+      return null;
+    }
+
+    return body.trim();
+  }
+}
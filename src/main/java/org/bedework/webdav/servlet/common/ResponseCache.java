@@ -0,0 +1,318 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Cache of complete multistatus responses about collections. Many
+ * principals ask for the same shared collections with the same requests
+ * and get the same bytes back.
+ *
+ * <p>Entries are keyed by a digest of the request - method, URI, depth,
+ * body, the access class of the principal and the output format. Each
+ * holds the sync token of the collection when it was built and is only
+ * used while the token is unchanged. The token doesn't cover changes in
+ * sub-collections so only depth 0 and 1 responses are cached.
+ *
+ * <p>The cache is bounded by the total size of the responses and the
+ * least recently used entries are dropped to make room.
+ */
+public class ResponseCache {
+  /** Name of counter for cache hits */
+  public static final String hitsCounter = "responseCache.hits";
+
+  /** Name of counter for cache misses */
+  public static final String missesCounter = "responseCache.misses";
+
+  /** Name of counter for entries dropped because the token changed */
+  public static final String invalidatedCounter = "responseCache.invalidated";
+
+  /** Name of counter for entries dropped to make room */
+  public static final String evictedCounter = "responseCache.evicted";
+
+  /** Name of counter for responses too large to cache */
+  public static final String tooLargeCounter = "responseCache.tooLarge";
+
+  /** Default largest response we cache */
+  public static final int defaultMaxEntryBytes = 1024 * 1024;
+
+  private final long maxBytes;
+
+  private final int maxEntryBytes;
+
+  private long bytes;
+
+  /* Access ordered - guarded by this */
+  private final LinkedHashMap<String, Entry> entries =
+          new LinkedHashMap<>(16, 0.75f, true);
+
+  /** A cached response
+   */
+  public static class Entry {
+    private final String token;
+
+    private final String contentType;
+
+    private final byte[] content;
+
+    Entry(final String token,
+          final String contentType,
+          final byte[] content) {
+      this.token = token;
+      this.contentType = contentType;
+      this.content = content;
+    }
+
+    /**
+     * @return content type of the response
+     */
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @param out where the response goes
+     * @throws IOException on error
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+      out.write(content);
+      out.flush();
+    }
+  }
+
+  /** Collects a copy of a response as it is written
+   */
+  public class Capture {
+    private final String key;
+
+    private final String token;
+
+    private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    private boolean tooLarge;
+
+    Capture(final String key,
+            final String token) {
+      this.key = key;
+      this.token = token;
+    }
+
+    /**
+     * @param out the response stream
+     * @return a stream which writes to out and keeps a copy
+     */
+    public OutputStream wrap(final OutputStream out) {
+      return new OutputStream() {
+        @Override
+        public void write(final int b) throws IOException {
+          out.write(b);
+          keep(1).write(b);
+        }
+
+        @Override
+        public void write(final byte[] b,
+                          final int off,
+                          final int len) throws IOException {
+          out.write(b, off, len);
+          keep(len).write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          out.close();
+        }
+      };
+    }
+
+    /** Save the copy if it was not too large.
+     *
+     * @param contentType of the response
+     */
+    public void save(final String contentType) {
+      if (tooLarge) {
+        WebdavStats.inc(tooLargeCounter);
+        return;
+      }
+
+      put(key, new Entry(token, contentType, copy.toByteArray()));
+    }
+
+    /* Where the copy goes - nowhere once it's too large */
+    private OutputStream keep(final int len) {
+      if (!tooLarge && (copy.size() + len > maxEntryBytes)) {
+        tooLarge = true;
+        copy.reset();
+      }
+
+      if (tooLarge) {
+        return nowhere;
+      }
+
+      return copy;
+    }
+  }
+
+  private static final OutputStream nowhere = new OutputStream() {
+    @Override
+    public void write(final int b) {
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) {
+    }
+  };
+
+  /**
+   * @param maxBytes total size of cached responses
+   * @param maxEntryBytes largest response we cache
+   */
+  public ResponseCache(final long maxBytes,
+                       final int maxEntryBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = (int)Math.min(maxEntryBytes, maxBytes);
+  }
+
+  /** Make a key from the things which determine the response.
+   *
+   * @param parts of the key - any may be null
+   * @return the key
+   * @throws WebdavException on error
+   */
+  public static String makeKey(final Object... parts) throws WebdavException {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+      for (final Object o: parts) {
+        md.update(String.valueOf(o).getBytes(StandardCharsets.UTF_8));
+        md.update((byte)0);
+      }
+
+      final StringBuilder sb = new StringBuilder();
+
+      for (final byte b: md.digest()) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+
+      return sb.toString();
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
+
+  /**
+   * @param key from makeKey
+   * @param token current sync token of the collection
+   * @return entry or null if none or the token has changed
+   */
+  public synchronized Entry get(final String key,
+                                final String token) {
+    final Entry ent = entries.get(key);
+
+    if (ent == null) {
+      WebdavStats.inc(missesCounter);
+      return null;
+    }
+
+    if (!ent.token.equals(token)) {
+      remove(key);
+      WebdavStats.inc(invalidatedCounter);
+      WebdavStats.inc(missesCounter);
+      return null;
+    }
+
+    WebdavStats.inc(hitsCounter);
+    return ent;
+  }
+
+  /**
+   * @param key from makeKey
+   * @param token current sync token of the collection
+   * @return a capture which saves to this cache
+   */
+  public Capture startCapture(final String key,
+                              final String token) {
+    return new Capture(key, token);
+  }
+
+  /**
+   * @return number of cached responses
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return total size of cached responses
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private synchronized void put(final String key,
+                                final Entry ent) {
+    remove(key);
+
+    entries.put(key, ent);
+    bytes += ent.content.length;
+
+    final Iterator<Map.Entry<String, Entry>> it =
+            entries.entrySet().iterator();
+
+    while ((bytes > maxBytes) && it.hasNext()) {
+      final Map.Entry<String, Entry> eldest = it.next();
+
+      if (eldest.getValue() == ent) {
+        continue;
+      }
+
+      bytes -= eldest.getValue().content.length;
+      it.remove();
+      WebdavStats.inc(evictedCounter);
+    }
+  }
+
+  private void remove(final String key) {
+    final Entry old = entries.remove(key);
+
+    if (old != null) {
+      bytes -= old.content.length;
+    }
+  }
+}
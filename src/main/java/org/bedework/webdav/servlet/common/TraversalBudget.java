@@ -0,0 +1,153 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+/** Limits on the part of the tree a PROPFIND may walk.
+ *
+ * <p>When the number of responses, the depth or the elapsed time is
+ * exceeded the multistatus is ended with a 507 response for the request
+ * URI. In paginated mode that response carries a token and the client may
+ * repeat the request with the token in the continuation header to get the
+ * next part.
+ *
+ * <p>In strict mode a Depth: infinity PROPFIND is refused with the
+ * DAV:propfind-finite-depth precondition.
+ *
+ * <p>Zero for any limit means no limit.
+ */
+public class TraversalBudget {
+  /** Name of counter for walks stopped by the node limit */
+  public static final String nodesCounter = "propfindLimit.nodes";
+
+  /** Name of counter for walks stopped by the depth limit */
+  public static final String depthCounter = "propfindLimit.depth";
+
+  /** Name of counter for walks stopped by the time limit */
+  public static final String timeCounter = "propfindLimit.time";
+
+  /** Name of counter for continuation tokens issued */
+  public static final String continuedCounter = "propfindLimit.continued";
+
+  /** Name of counter for continuation tokens refused as stale */
+  public static final String staleCounter = "propfindLimit.stale";
+
+  /** Name of counter for Depth: infinity requests refused */
+  public static final String refusedCounter = "propfindLimit.refused";
+
+  /** Request header carrying the continuation token */
+  public static final String continuationHeader = "Bw-Continuation";
+
+  private static final TraversalBudget unlimited =
+          new TraversalBudget(0, 0, 0, false, false);
+
+  private final int maxNodes;
+
+  private final int maxDepth;
+
+  private final int maxMillis;
+
+  private final boolean paginate;
+
+  private final boolean finiteDepth;
+
+  /**
+   * @param maxNodes most responses - 0 for no limit
+   * @param maxDepth most levels below the request URI - 0 for no limit
+   * @param maxMillis most time walking - 0 for no limit
+   * @param paginate true to return continuation tokens
+   * @param finiteDepth true to refuse Depth: infinity
+   */
+  public TraversalBudget(final int maxNodes,
+                         final int maxDepth,
+                         final int maxMillis,
+                         final boolean paginate,
+                         final boolean finiteDepth) {
+    this.maxNodes = maxNodes;
+    this.maxDepth = maxDepth;
+    this.maxMillis = maxMillis;
+    this.paginate = paginate;
+    this.finiteDepth = finiteDepth;
+  }
+
+  /**
+   * @return budget with no limits
+   */
+  public static TraversalBudget getUnlimited() {
+    return unlimited;
+  }
+
+  /**
+   * @return most responses - 0 for no limit
+   */
+  public int getMaxNodes() {
+    return maxNodes;
+  }
+
+  /**
+   * @return most levels below the request URI - 0 for no limit
+   */
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * @return most time walking - 0 for no limit
+   */
+  public int getMaxMillis() {
+    return maxMillis;
+  }
+
+  /**
+   * @return true to return continuation tokens
+   */
+  public boolean getPaginate() {
+    return paginate;
+  }
+
+  /**
+   * @return true to refuse Depth: infinity
+   */
+  public boolean getFiniteDepth() {
+    return finiteDepth;
+  }
+
+  /**
+   * @param nodes responses written so far
+   * @return true if no more may be written
+   */
+  public boolean nodesExceeded(final int nodes) {
+    return (maxNodes > 0) && (nodes >= maxNodes);
+  }
+
+  /**
+   * @param depth level below the request URI
+   * @return true if that level may not be walked
+   */
+  public boolean depthExceeded(final int depth) {
+    return (maxDepth > 0) && (depth > maxDepth);
+  }
+
+  /**
+   * @param millis time walking so far
+   * @return true if we should stop
+   */
+  public boolean timeExceeded(final long millis) {
+    return (maxMillis > 0) && (millis >= maxMillis);
+  }
+}
@@ -0,0 +1,1002 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.util.xml.XmlEmit;
+import org.bedework.util.xml.tagdefs.WebdavTags;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.namespace.QName;
+
+/** An XmlEmit which encodes straight to UTF-8 bytes and writes them to an
+ * OutputStream, normally the ServletOutputStream.
+ *
+ * <p>The encoded form of each element name is cached, so repeated tags
+ * are copied into the buffer rather than being built and encoded each
+ * time. Text and attribute values are escaped using a lookup table.
+ *
+ * <p>The namespace table of the parent class is used to assign prefixes.
+ * Every namespace added before output starts is declared once on the root
+ * element. Any others are declared on the first element which needs them
+ * and are in scope until that element is closed.
+ */
+public class Utf8XmlEmit extends XmlEmit {
+  private static final byte[] header =
+          "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n\n"
+                  .getBytes(StandardCharsets.UTF_8);
+
+  private static final int bufferSize = 8192;
+
+  /* Don't let unknown property names from requests grow this forever */
+  private static final int maxCachedTags = 4096;
+
+  private static final ConcurrentHashMap<QName, TagBytes> tagCache =
+          new ConcurrentHashMap<>();
+
+  /* Escapes for ascii characters - null if none needed */
+  private static final byte[][] textEscapes = new byte[128][];
+
+  private static final byte[][] attrEscapes = new byte[128][];
+
+  static {
+    textEscapes['&'] = ascii("&amp;");
+    textEscapes['<'] = ascii("&lt;");
+    textEscapes['>'] = ascii("&gt;");
+
+    attrEscapes['&'] = ascii("&amp;");
+    attrEscapes['<'] = ascii("&lt;");
+    attrEscapes['>'] = ascii("&gt;");
+    attrEscapes['"'] = ascii("&quot;");
+    attrEscapes['\t'] = ascii("&#9;");
+    attrEscapes['\n'] = ascii("&#10;");
+    attrEscapes['\r'] = ascii("&#13;");
+  }
+
+  /* Encoded element name for a given prefix */
+  private static class TagBytes {
+    final String prefix;
+    final byte[] open;   // <prefix:name
+    final byte[] name;   // prefix:name
+    final byte[] close;  // </prefix:name>
+
+    TagBytes(final String prefix,
+             final String localName) {
+      this.prefix = prefix;
+
+      final String nm;
+      if (prefix == null) {
+        nm = localName;
+      } else {
+        nm = prefix + ":" + localName;
+      }
+
+      name = nm.getBytes(StandardCharsets.UTF_8);
+      open = ("<" + nm).getBytes(StandardCharsets.UTF_8);
+      close = ("</" + nm + ">").getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  /* A namespace declaration in scope */
+  private static class NsDecl {
+    final String prefix;  // null for default
+    final String uri;
+    final int level;
+
+    NsDecl(final String prefix,
+           final String uri,
+           final int level) {
+      this.prefix = prefix;
+      this.uri = uri;
+      this.level = level;
+    }
+  }
+
+  private final boolean noHeaders;
+
+  private OutputStream out;
+
+  private final byte[] buf = new byte[bufferSize];
+
+  private int pos;
+
+  private boolean started;
+
+  private Notifier notifier;
+
+  private NameSpace defaultNs;
+
+  private final Map<String, NameSpace> namespaces = new LinkedHashMap<>();
+
+  private boolean rootDeclared;
+
+  /** Number of open elements */
+  protected int depth;
+
+  private final List<NsDecl> decls = new ArrayList<>();
+
+  private Writer writer;
+
+  private FlushPolicy flushPolicy;
+
+  /* Since the last flush */
+  private long bytesWritten;
+
+  private int flushRequests;
+
+  private long lastFlush;
+
+  private boolean flushed;
+
+  /** The default constructor
+   */
+  public Utf8XmlEmit() {
+    this(false);
+  }
+
+  /** Constructor allowing suppression of headers
+   *
+   * @param noHeaders true to suppress the xml header
+   */
+  public Utf8XmlEmit(final boolean noHeaders) {
+    super(noHeaders);
+    this.noHeaders = noHeaders;
+  }
+
+  /** Emit to an output stream
+   *
+   * @param out the stream
+   */
+  public void startEmit(final OutputStream out) {
+    this.out = out;
+    pos = 0;
+    started = false;
+    rootDeclared = false;
+    depth = 0;
+    decls.clear();
+
+    bytesWritten = 0;
+    flushRequests = 0;
+    lastFlush = System.currentTimeMillis();
+    flushed = false;
+  }
+
+  /** Set the policy applied to flushes requested before the document is
+   * complete. Null means every flush is done.
+   *
+   * @param val the policy
+   */
+  public void setFlushPolicy(final FlushPolicy val) {
+    flushPolicy = val;
+  }
+
+  @Override
+  public void startEmit(final Writer wtr) throws IOException {
+    startEmit(new WriterStream(wtr));
+  }
+
+  @Override
+  public void startEmit(final Writer wtr,
+                        final String dtd) throws IOException {
+    startEmit(wtr);
+  }
+
+  @Override
+  public void setNotifier(final Notifier n) {
+    super.setNotifier(n);
+    notifier = n;
+  }
+
+  /** Add a namespace to any emitter, recording the uri if it is one of
+   * ours so the namespace is declared on the root element.
+   *
+   * @param xml emitter
+   * @param uri namespace uri
+   * @param abbrev prefix or null to have one generated
+   * @param makeDefault true for the default namespace
+   * @throws IOException on error
+   */
+  public static void addNamespace(final XmlEmit xml,
+                                  final String uri,
+                                  final String abbrev,
+                                  final boolean makeDefault) throws IOException {
+    if (xml instanceof Utf8XmlEmit) {
+      ((Utf8XmlEmit)xml).addNs(uri, abbrev, makeDefault);
+      return;
+    }
+
+    xml.addNs(new NameSpace(uri, abbrev), makeDefault);
+  }
+
+  /** Add a namespace and remember its uri. NameSpace does not expose
+   * the uri so namespaces added through addNs(NameSpace, boolean) are
+   * only declared where they are first used - unless they are DAV or
+   * in the NamespaceRegistry.
+   *
+   * @param uri namespace uri
+   * @param abbrev prefix or null to have one generated
+   * @param makeDefault true for the default namespace
+   * @throws IOException on error
+   */
+  public void addNs(final String uri,
+                    final String abbrev,
+                    final boolean makeDefault) throws IOException {
+    final NameSpace ns = new NameSpace(uri, abbrev);
+
+    addNs(ns, makeDefault);
+    namespaces.put(uri, ns);
+  }
+
+  /** Remember the uri of a namespace already added to this emitter so
+   * that it is declared on the root element.
+   *
+   * @param uri namespace uri
+   */
+  public void recordNs(final String uri) {
+    final NameSpace ns = getNameSpace(uri);
+
+    if (ns != null) {
+      namespaces.putIfAbsent(uri, ns);
+    }
+  }
+
+  @Override
+  public void addNs(final NameSpace val,
+                    final boolean makeDefault) throws IOException {
+    super.addNs(val, makeDefault);
+
+    if (makeDefault) {
+      defaultNs = val;
+    }
+
+    /* Subclasses add the well known namespaces this way */
+    if (getNameSpace(WebdavTags.namespace) == val) {
+      namespaces.putIfAbsent(WebdavTags.namespace, val);
+      return;
+    }
+
+    for (final String uri: NamespaceRegistry.getKnown().keySet()) {
+      if (getNameSpace(uri) == val) {
+        namespaces.putIfAbsent(uri, val);
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void openTag(final QName tag) throws IOException {
+    openTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void openTag(final QName tag,
+                      final String attrName,
+                      final String attrVal) throws IOException {
+    openTagSameLine(tag, attrName, attrVal);
+    newline();
+  }
+
+  @Override
+  public void openTagNoNewline(final QName tag) throws IOException {
+    openTagSameLine(tag);
+  }
+
+  @Override
+  public void openTagNoNewline(final QName tag,
+                               final String attrName,
+                               final String attrVal) throws IOException {
+    openTagSameLine(tag, attrName, attrVal);
+  }
+
+  @Override
+  public void openTagSameLine(final QName tag) throws IOException {
+    startTagSameLine(tag);
+    endOpeningTag();
+  }
+
+  @Override
+  public void openTagSameLine(final QName tag,
+                              final String attrName,
+                              final String attrVal) throws IOException {
+    startTagSameLine(tag);
+    attribute(attrName, attrVal);
+    endOpeningTag();
+  }
+
+  @Override
+  public void startTag(final QName tag) throws IOException {
+    startTagSameLine(tag);
+  }
+
+  @Override
+  public void startTagIndent(final QName tag) throws IOException {
+    startTagSameLine(tag);
+  }
+
+  @Override
+  public void startTagSameLine(final QName tag) throws IOException {
+    begin();
+
+    final String uri = tag.getNamespaceURI();
+    final TagBytes tb = tagBytes(tag, uri);
+
+    write(tb.open);
+
+    if (!rootDeclared) {
+      declareAll();
+    }
+
+    declare(tb.prefix, uri);
+  }
+
+  @Override
+  public void endOpeningTag() throws IOException {
+    begin();
+    write('>');
+    depth++;
+  }
+
+  @Override
+  public void attribute(final String attrName,
+                        final String attrVal) throws IOException {
+    begin();
+    write(' ');
+    writeEscaped(attrName, attrEscapes);
+    write('=');
+    write('"');
+    writeEscaped(attrVal, attrEscapes);
+    write('"');
+  }
+
+  @Override
+  public void attribute(final QName attrName,
+                        final String attrVal) throws IOException {
+    begin();
+
+    final String uri = attrName.getNamespaceURI();
+
+    if ((uri == null) || (uri.length() == 0)) {
+      /* Unprefixed attributes are in no namespace - nothing to declare */
+      write(' ');
+    } else {
+      /* The default namespace doesn't apply to attributes so always use
+       * a prefix
+       */
+      prefixFor(uri);
+      final String prefix = getNsAbbrev(uri);
+
+      declare(prefix, uri);
+      write(' ');
+      writeEscaped(prefix, attrEscapes);
+      write(':');
+    }
+
+    writeEscaped(attrName.getLocalPart(), attrEscapes);
+    write('=');
+    write('"');
+    writeEscaped(attrVal, attrEscapes);
+    write('"');
+  }
+
+  @Override
+  public void closeTag(final QName tag) throws IOException {
+    closeTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void closeTagNoblanks(final QName tag) throws IOException {
+    closeTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void closeTagSameLine(final QName tag) throws IOException {
+    begin();
+    write(tagBytes(tag, tag.getNamespaceURI()).close);
+    endScope(depth);
+
+    if (depth > 0) {
+      depth--;
+    }
+  }
+
+  @Override
+  public void endEmptyTag() throws IOException {
+    begin();
+    write('/');
+    write('>');
+    endScope(depth + 1);
+  }
+
+  @Override
+  public void emptyTag(final QName tag) throws IOException {
+    emptyTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void emptyTag(final QName tag,
+                       final String attrName,
+                       final String attrVal) throws IOException {
+    startTagSameLine(tag);
+    attribute(attrName, attrVal);
+    endEmptyTag();
+    newline();
+  }
+
+  @Override
+  public void emptyTagSameLine(final QName tag) throws IOException {
+    startTagSameLine(tag);
+    endEmptyTag();
+  }
+
+  @Override
+  public void property(final QName tag,
+                       final String val) throws IOException {
+    openTagSameLine(tag);
+    value(val);
+    closeTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void cdataProperty(final QName tag,
+                            final String val) throws IOException {
+    openTagSameLine(tag);
+    cdataValue(val);
+    closeTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void property(final QName tag,
+                       final Reader val) throws IOException {
+    openTagSameLine(tag);
+
+    try {
+      final char[] cbuf = new char[4096];
+
+      for (;;) {
+        final int ct = val.read(cbuf);
+
+        if (ct < 0) {
+          break;
+        }
+
+        writeChars(cbuf, 0, ct);
+      }
+    } finally {
+      try {
+        val.close();
+      } catch (final Throwable ignored) {
+      }
+    }
+
+    closeTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void propertyTagVal(final QName tag,
+                             final QName tagVal) throws IOException {
+    openTagSameLine(tag);
+    emptyTagSameLine(tagVal);
+    closeTagSameLine(tag);
+    newline();
+  }
+
+  @Override
+  public void cdataValue(final String val) throws IOException {
+    begin();
+
+    if (val == null) {
+      return;
+    }
+
+    /* A "]]>" in the value has to be split over two sections */
+    int start = 0;
+
+    for (;;) {
+      final int end = val.indexOf("]]>", start);
+
+      writeAscii("<![CDATA[");
+
+      if (end < 0) {
+        writeRaw(val, start, val.length());
+        writeAscii("]]>");
+        return;
+      }
+
+      writeRaw(val, start, end + 2);
+      writeAscii("]]>");
+      start = end + 2;
+    }
+  }
+
+  @Override
+  public void value(final String val) throws IOException {
+    begin();
+    writeEscaped(val, textEscapes);
+  }
+
+  @Override
+  public void newline() throws IOException {
+    begin();
+    write('\n');
+  }
+
+  /** Raw writes to this go into the output without escaping.
+   *
+   * @return a writer which writes through our buffer
+   */
+  @Override
+  public Writer getWriter() {
+    if (writer == null) {
+      writer = new Writer() {
+        @Override
+        public void write(final char[] cbuf,
+                          final int off,
+                          final int len) throws IOException {
+          writeChars(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          Utf8XmlEmit.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          Utf8XmlEmit.this.flush();
+        }
+      };
+    }
+
+    return writer;
+  }
+
+  /** If there is a flush policy and the document is not complete the
+   * flush may be deferred.
+   *
+   * @throws IOException on error
+   */
+  @Override
+  public void flush() throws IOException {
+    if (out == null) {
+      return;
+    }
+
+    final long now = System.currentTimeMillis();
+
+    if ((flushPolicy != null) && (depth > 0)) {
+      flushRequests++;
+
+      if (!flushPolicy.shouldFlush(bytesWritten + pos,
+                                   flushRequests,
+                                   now - lastFlush,
+                                   flushed)) {
+        WebdavStats.inc(FlushPolicy.skippedCounter);
+        return;
+      }
+    }
+
+    flushBuffer();
+    out.flush();
+
+    WebdavStats.inc(FlushPolicy.flushesCounter);
+    WebdavStats.add(FlushPolicy.bytesCounter, bytesWritten);
+
+    bytesWritten = 0;
+    flushRequests = 0;
+    lastFlush = now;
+    flushed = true;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /** Called before anything is output - handles the notifier and header
+   *
+   * @throws IOException on error
+   */
+  protected void begin() throws IOException {
+    if ((notifier != null) && notifier.isEnabled()) {
+      try {
+        notifier.doNotification();
+      } catch (final IOException ioe) {
+        throw ioe;
+      } catch (final Throwable t) {
+        throw new IOException(t);
+      }
+    }
+
+    if (!started) {
+      started = true;
+
+      if (!noHeaders) {
+        write(header);
+      }
+    }
+  }
+
+  private TagBytes tagBytes(final QName tag,
+                            final String uri) throws IOException {
+    final String prefix = prefixFor(uri);
+    TagBytes tb = tagCache.get(tag);
+
+    if ((tb != null) && samePrefix(tb.prefix, prefix)) {
+      return tb;
+    }
+
+    tb = new TagBytes(prefix, tag.getLocalPart());
+
+    if (tagCache.size() < maxCachedTags) {
+      tagCache.put(tag, tb);
+    }
+
+    return tb;
+  }
+
+  private static boolean samePrefix(final String p1,
+                                    final String p2) {
+    if (p1 == null) {
+      return p2 == null;
+    }
+
+    return p1.equals(p2);
+  }
+
+  /* null for the default or no namespace */
+  private String prefixFor(final String uri) throws IOException {
+    if ((uri == null) || (uri.length() == 0)) {
+      return null;
+    }
+
+    NameSpace ns = getNameSpace(uri);
+
+    if (ns == null) {
+      addNs(uri, null, false);
+      ns = getNameSpace(uri);
+    }
+
+    if (ns == defaultNs) {
+      return null;
+    }
+
+    return getNsAbbrev(uri);
+  }
+
+  /**
+   * @return uri to prefix for the namespaces added so far - null prefix
+   *         for the default namespace
+   */
+  protected Map<String, String> getNamespacePrefixes() {
+    final Map<String, String> res = new LinkedHashMap<>();
+
+    for (final Map.Entry<String, NameSpace> ent: namespaces.entrySet()) {
+      final String uri = ent.getKey();
+
+      if (ent.getValue() == defaultNs) {
+        res.put(uri, null);
+      } else {
+        res.put(uri, getNsAbbrev(uri));
+      }
+    }
+
+    return res;
+  }
+
+  /* Declare everything we know about on the root element */
+  private void declareAll() throws IOException {
+    rootDeclared = true;
+
+    for (final Map.Entry<String, NameSpace> ent: namespaces.entrySet()) {
+      final String uri = ent.getKey();
+
+      if (ent.getValue() == defaultNs) {
+        declare(null, uri);
+      } else {
+        declare(getNsAbbrev(uri), uri);
+      }
+    }
+  }
+
+  /* Declare the namespace on the current start tag unless in scope */
+  private void declare(final String prefix,
+                       final String uri) throws IOException {
+    final String nsUri;
+    if (uri == null) {
+      nsUri = "";
+    } else {
+      nsUri = uri;
+    }
+
+    for (int i = decls.size() - 1; i >= 0; i--) {
+      final NsDecl d = decls.get(i);
+
+      if (samePrefix(d.prefix, prefix)) {
+        if (d.uri.equals(nsUri)) {
+          return;
+        }
+        break;
+      }
+    }
+
+    if ((prefix == null) && (nsUri.length() == 0)) {
+      /* Only need to undeclare the default if one is in scope */
+      boolean haveDefault = false;
+
+      for (final NsDecl d: decls) {
+        if (d.prefix == null) {
+          haveDefault = true;
+          break;
+        }
+      }
+
+      if (!haveDefault) {
+        return;
+      }
+    }
+
+    writeAscii(" xmlns");
+
+    if (prefix != null) {
+      write(':');
+      writeRaw(prefix, 0, prefix.length());
+    }
+
+    write('=');
+    write('"');
+    writeEscaped(nsUri, attrEscapes);
+    write('"');
+
+    decls.add(new NsDecl(prefix, nsUri, depth + 1));
+  }
+
+  /* Drop declarations made at or below the given level */
+  private void endScope(final int level) {
+    for (int i = decls.size() - 1; i >= 0; i--) {
+      if (decls.get(i).level < level) {
+        break;
+      }
+
+      decls.remove(i);
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (pos > 0) {
+      out.write(buf, 0, pos);
+      bytesWritten += pos;
+      pos = 0;
+    }
+  }
+
+  private void ensure(final int len) throws IOException {
+    if ((pos + len) > buf.length) {
+      flushBuffer();
+    }
+  }
+
+  /**
+   * @param b ascii character to write
+   * @throws IOException on error
+   */
+  protected void write(final int b) throws IOException {
+    ensure(1);
+    buf[pos++] = (byte)b;
+  }
+
+  private void write(final byte[] bytes) throws IOException {
+    if (bytes.length > buf.length) {
+      flushBuffer();
+      out.write(bytes);
+      bytesWritten += bytes.length;
+      return;
+    }
+
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, buf, pos, bytes.length);
+    pos += bytes.length;
+  }
+
+  /**
+   * @param val ascii only - written as is
+   * @throws IOException on error
+   */
+  protected void writeAscii(final String val) throws IOException {
+    final int len = val.length();
+    ensure(len);
+
+    for (int i = 0; i < len; i++) {
+      buf[pos++] = (byte)val.charAt(i);
+    }
+  }
+
+  private void writeRaw(final String val,
+                        final int start,
+                        final int end) throws IOException {
+    for (int i = start; i < end; i++) {
+      final char c = val.charAt(i);
+
+      if (c < 0x80) {
+        ensure(1);
+        buf[pos++] = (byte)c;
+        continue;
+      }
+
+      i = encode(c, val, i, end);
+    }
+  }
+
+  private void writeChars(final char[] cbuf,
+                          final int off,
+                          final int len) throws IOException {
+    final int end = off + len;
+
+    for (int i = off; i < end; i++) {
+      final char c = cbuf[i];
+
+      if (c < 0x80) {
+        ensure(1);
+        buf[pos++] = (byte)c;
+        continue;
+      }
+
+      char low = 0;
+      if (Character.isHighSurrogate(c) && ((i + 1) < end)) {
+        low = cbuf[i + 1];
+      }
+
+      if (encode(c, low)) {
+        i++;
+      }
+    }
+  }
+
+  /**
+   * @param val to write - may be null
+   * @param escapes replacements for ascii characters - null for none
+   * @throws IOException on error
+   */
+  protected void writeEscaped(final String val,
+                            final byte[][] escapes) throws IOException {
+    if (val == null) {
+      return;
+    }
+
+    final int len = val.length();
+
+    for (int i = 0; i < len; i++) {
+      final char c = val.charAt(i);
+
+      if (c < 0x80) {
+        final byte[] esc = escapes[c];
+
+        if (esc == null) {
+          ensure(1);
+          buf[pos++] = (byte)c;
+        } else {
+          write(esc);
+        }
+
+        continue;
+      }
+
+      i = encode(c, val, i, len);
+    }
+  }
+
+  /* Encode a non-ascii character at val[i] - returns index of the last
+   * char used.
+   */
+  private int encode(final char c,
+                     final String val,
+                     final int i,
+                     final int end) throws IOException {
+    char low = 0;
+    if (Character.isHighSurrogate(c) && ((i + 1) < end)) {
+      low = val.charAt(i + 1);
+    }
+
+    if (encode(c, low)) {
+      return i + 1;
+    }
+
+    return i;
+  }
+
+  /* Returns true if the low surrogate was used */
+  private boolean encode(final char c,
+                         final char low) throws IOException {
+    ensure(4);
+
+    if (c < 0x800) {
+      buf[pos++] = (byte)(0xc0 | (c >> 6));
+      buf[pos++] = (byte)(0x80 | (c & 0x3f));
+      return false;
+    }
+
+    if (!Character.isSurrogate(c)) {
+      buf[pos++] = (byte)(0xe0 | (c >> 12));
+      buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+      buf[pos++] = (byte)(0x80 | (c & 0x3f));
+      return false;
+    }
+
+    if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+      final int cp = Character.toCodePoint(c, low);
+
+      buf[pos++] = (byte)(0xf0 | (cp >> 18));
+      buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+      buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+      buf[pos++] = (byte)(0x80 | (cp & 0x3f));
+      return true;
+    }
+
+    // Unpaired surrogate
+    buf[pos++] = (byte)'?';
+    return false;
+  }
+
+  private static byte[] ascii(final String val) {
+    return val.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /* Adapts a writer for the case where we are handed one. Our buffer is
+   * only ever flushed on a character boundary so each chunk decodes
+   * cleanly.
+   */
+  private static class WriterStream extends OutputStream {
+    private final Writer wtr;
+
+    WriterStream(final Writer wtr) {
+      this.wtr = wtr;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      wtr.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+      wtr.write(new String(b, off, len, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void flush() throws IOException {
+      wtr.flush();
+    }
+  }
+}
@@ -0,0 +1,320 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.common.Headers.IfHeaders;
+import org.bedework.webdav.servlet.shared.WebdavBadRequest;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import java.util.Enumeration;
+
+import javax.servlet.http.HttpServletRequest;
+
+/** Request scoped holder for the parsed values of the webdav headers we
+ * look at. Each header is parsed the first time it is asked for and the
+ * result kept for the rest of the request.
+ *
+ * <p>One of these is attached to the request as an attribute so that the
+ * methods, the namespace interface and the static Headers methods all
+ * share the same values.
+ */
+public class WebdavRequestContext {
+  private static final String attrName =
+          WebdavRequestContext.class.getName();
+
+  private final HttpServletRequest req;
+
+  private boolean depthParsed;
+  private boolean depthPresent;
+  private boolean badDepth;
+  private int depth;
+
+  private boolean preferParsed;
+  private boolean brief;
+  private boolean returnMinimal;
+  private boolean returnRepresentation;
+  private boolean depthNoroot;
+
+  private IfHeaders ifHeaders;
+
+  private boolean destinationFetched;
+  private String destination;
+
+  private boolean overwriteParsed;
+  private boolean badOverwrite;
+  private boolean overwrite;
+
+  private WebdavRequestContext(final HttpServletRequest req) {
+    this.req = req;
+  }
+
+  /** Get the context for this request - creating it if needed.
+   *
+   * @param req    HttpServletRequest
+   * @return the context - never null
+   */
+  public static WebdavRequestContext get(final HttpServletRequest req) {
+    final Object o = req.getAttribute(attrName);
+
+    if (o instanceof WebdavRequestContext) {
+      return (WebdavRequestContext)o;
+    }
+
+    final WebdavRequestContext ctx = new WebdavRequestContext(req);
+    req.setAttribute(attrName, ctx);
+
+    return ctx;
+  }
+
+  /**
+   * @return the request
+   */
+  public HttpServletRequest getRequest() {
+    return req;
+  }
+
+  /** Get the depth header
+   *
+   * @param def    int default if no header
+   * @return int   depth
+   * @throws WebdavException for a bad value
+   */
+  public int getDepth(final int def) throws WebdavException {
+    if (!depthParsed) {
+      depthParsed = true;
+
+      final String depthStr = req.getHeader("Depth");
+
+      if (depthStr != null) {
+        depthPresent = true;
+
+        if (depthStr.equals("infinity")) {
+          depth = Headers.depthInfinity;
+        } else if (depthStr.equals("0")) {
+          depth = 0;
+        } else if (depthStr.equals("1")) {
+          depth = 1;
+        } else {
+          badDepth = true;
+        }
+      }
+    }
+
+    if (badDepth) {
+      throw new WebdavBadRequest();
+    }
+
+    if (!depthPresent) {
+      return def;
+    }
+
+    return depth;
+  }
+
+  /**
+   * @return true if we have a (MS) "brief" header or the Prefer header
+   *              with "return-minimal" or "return=minimal"
+   */
+  public boolean getBrief() {
+    parsePrefer();
+
+    return brief;
+  }
+
+  /**
+   * @return true if the Prefer header had "return-minimal" or
+   *              "return=minimal"
+   */
+  public boolean getReturnMinimal() {
+    parsePrefer();
+
+    return returnMinimal;
+  }
+
+  /**
+   * @return true if we have a Prefer header
+   *              with "return-representation" or "return=representation"
+   */
+  public boolean getReturnRepresentation() {
+    parsePrefer();
+
+    return returnRepresentation;
+  }
+
+  /**
+   * @return true if the Prefer header had "depth-noroot" - rfc 8144
+   */
+  public boolean getDepthNoroot() {
+    parsePrefer();
+
+    return depthNoroot;
+  }
+
+  /**
+   * @return populated IfHeaders object
+   * @throws WebdavException for a bad If header
+   */
+  public IfHeaders getIfHeaders() throws WebdavException {
+    if (ifHeaders == null) {
+      final IfHeaders ih = new IfHeaders();
+
+      ih.create = Headers.ifNoneMatchAny(req);
+      ih.ifEtag = Headers.ifMatch(req);
+      ih.ifHeader = Headers.testIfHeader(req);
+
+      ifHeaders = ih;
+    }
+
+    return ifHeaders;
+  }
+
+  /**
+   * @return value of the Destination header or null
+   */
+  public String getDestination() {
+    if (!destinationFetched) {
+      destinationFetched = true;
+      destination = req.getHeader("Destination");
+    }
+
+    return destination;
+  }
+
+  /**
+   * @return value of the Overwrite header - true if absent
+   * @throws WebdavException for a value other than T or F
+   */
+  public boolean getOverwrite() throws WebdavException {
+    if (!overwriteParsed) {
+      overwriteParsed = true;
+
+      final String ow = req.getHeader("Overwrite");
+
+      if ((ow == null) || "T".equals(ow)) {
+        overwrite = true;
+      } else if ("F".equals(ow)) {
+        overwrite = false;
+      } else {
+        badOverwrite = true;
+      }
+    }
+
+    if (badOverwrite) {
+      throw new WebdavBadRequest("Bad Overwrite header");
+    }
+
+    return overwrite;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void parsePrefer() {
+    if (preferParsed) {
+      return;
+    }
+
+    preferParsed = true;
+
+    final Enumeration<?> vals = req.getHeaders("Prefer");
+
+    if (vals != null) {
+      while (vals.hasMoreElements()) {
+        final Object val = vals.nextElement();
+
+        if (val != null) {
+          parsePrefer(val.toString());
+        }
+      }
+    }
+
+    final String b = req.getHeader("Brief");
+
+    if (b != null) {
+      brief = b.equalsIgnoreCase("T");
+    } else {
+      brief = returnMinimal;
+    }
+  }
+
+  /* Scan a comma separated list of preferences. Each is either a token,
+   * e.g. "return-minimal" from earlier drafts, or token=value optionally
+   * followed by parameters, e.g. "return=minimal; foo".
+   */
+  private void parsePrefer(final String val) {
+    final int len = val.length();
+    int pos = 0;
+
+    while (pos < len) {
+      int end = val.indexOf(',', pos);
+      if (end < 0) {
+        end = len;
+      }
+
+      int parEnd = val.indexOf(';', pos);
+      if ((parEnd < 0) || (parEnd > end)) {
+        parEnd = end;
+      }
+
+      final int eq = val.indexOf('=', pos);
+
+      if ((eq < 0) || (eq > parEnd)) {
+        preference(val.substring(pos, parEnd).trim(), null);
+      } else {
+        String pval = val.substring(eq + 1, parEnd).trim();
+
+        if ((pval.length() > 1) && (pval.charAt(0) == '"') &&
+                (pval.charAt(pval.length() - 1) == '"')) {
+          pval = pval.substring(1, pval.length() - 1);
+        }
+
+        preference(val.substring(pos, eq).trim(), pval);
+      }
+
+      pos = end + 1;
+    }
+  }
+
+  private void preference(final String key,
+                          final String val) {
+    if (val == null) {
+      // Previous form in draft
+      if ("return-minimal".equalsIgnoreCase(key)) {
+        returnMinimal = true;
+      } else if ("return-representation".equalsIgnoreCase(key)) {
+        returnRepresentation = true;
+      } else if ("depth-noroot".equalsIgnoreCase(key)) {
+        depthNoroot = true;
+      }
+
+      return;
+    }
+
+    if (!"return".equalsIgnoreCase(key)) {
+      return;
+    }
+
+    if ("minimal".equals(val)) {
+      returnMinimal = true;
+    } else if ("representation".equals(val)) {
+      returnRepresentation = true;
+    }
+  }
+}
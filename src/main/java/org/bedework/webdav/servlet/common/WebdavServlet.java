@@ -22,17 +22,28 @@ import org.bedework.util.servlet.io.CharArrayWrappedResponse;
 import org.bedework.util.xml.XmlEmit;
 import org.bedework.util.xml.tagdefs.WebdavTags;
 import org.bedework.webdav.servlet.common.MethodBase.MethodInfo;
+import org.bedework.webdav.servlet.shared.PropertyProjection;
 import org.bedework.webdav.servlet.shared.WebdavException;
 import org.bedework.webdav.servlet.shared.WebdavForbidden;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf;
+import org.bedework.webdav.servlet.shared.WebdavNsNode;
 
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -53,6 +64,10 @@ import javax.xml.namespace.QName;
  */
 public abstract class WebdavServlet extends HttpServlet
         implements HttpSessionListener {
+  /* Methods registered without a safe flag which only read */
+  private static final Set<String> safeByName = new HashSet<>(
+          Arrays.asList("GET", "HEAD", "OPTIONS", "PROPFIND", "REPORT"));
+
   protected boolean debug;
 
   protected boolean dumpContent;
@@ -68,15 +83,58 @@ public abstract class WebdavServlet extends HttpServlet
    */
   protected HashMap<String, MethodInfo> methods = new HashMap<>();
 
-  /* Try to serialize requests from a single session
-   * This is very imperfect.
+  /* Limit concurrent requests from a single principal. Safe methods run
+   * concurrently, mutating methods are serialized.
    */
-  static class Waiter {
-    boolean active;
-    int waiting;
-  }
+  protected AdmissionController admission;
+
+  /* Parsed forms of recently seen request bodies - null if disabled.
+   */
+  protected RequestTemplateCache templateCache;
+
+  /* Limits on xml request bodies
+   */
+  protected XmlRequestLimits xmlLimits;
+
+  /* When streamed responses are flushed
+   */
+  protected FlushPolicy flushPolicy;
+
+  /* Compress responses for clients which accept it */
+  protected boolean compressResponses;
+
+  /* Smallest response we compress */
+  protected int compressMinSize;
+
+  /* Deflater compression level */
+  protected int compressLevel;
+
+  /* Accept compressed request bodies */
+  protected boolean decompressRequests;
+
+  /* Largest ratio of decompressed to compressed request body */
+  protected int maxDecompressionRatio;
+
+  /* Send validators for collection PROPFINDs and honour If-None-Match */
+  protected boolean propfindEtags;
+
+  /* Leave out the empty propstat rfc 8144 asks for in minimal responses */
+  protected boolean dropEmptyPropstat;
 
-  private static volatile HashMap<String, Waiter> waiters = new HashMap<>();
+  /* Saved multistatus responses - null if disabled */
+  protected ResponseCache responseCache;
+
+  /* Limits on the PROPFIND tree walk */
+  protected TraversalBudget traversalBudget;
+
+  /* Runs PROPFIND child fetches - null if disabled */
+  protected ExecutorService prefetchExecutor;
+
+  /* Most child fetches in progress for a request */
+  protected int prefetchMaxInFlight;
+
+  /* Most nodes fetched ahead for a request */
+  protected int prefetchMaxNodes;
 
   @Override
   public void init(final ServletConfig config) throws ServletException {
@@ -85,6 +143,81 @@ public abstract class WebdavServlet extends HttpServlet
     dumpContent = "true".equals(config.getInitParameter("dumpContent"));
     preserveSession = "true".equals(config.getInitParameter("preserve-session"));
 
+    admission = new AdmissionController(
+            intPar(config, "maxConcurrentReads", 4),
+            intPar(config, "admissionTimeoutMillis", 30000),
+            intPar(config, "admissionIdleMillis", 300000));
+
+    xmlLimits = new XmlRequestLimits(
+            intPar(config, "maxXmlBodyLength",
+                   XmlRequestLimits.defaultMaxBodyLength),
+            intPar(config, "maxXmlDepth",
+                   XmlRequestLimits.defaultMaxDepth),
+            intPar(config, "maxXmlElements",
+                   XmlRequestLimits.defaultMaxElements),
+            intPar(config, "maxXmlAttributes",
+                   XmlRequestLimits.defaultMaxAttributes));
+
+    flushPolicy = new FlushPolicy(
+            intPar(config, "flushBytes", FlushPolicy.defaultMaxBytes),
+            intPar(config, "flushElements", 0),
+            intPar(config, "flushMillis", 0),
+            !"false".equals(config.getInitParameter("flushFirstEarly")));
+
+    compressResponses = !"false".equals(
+            config.getInitParameter("compressResponses"));
+    compressMinSize = intPar(config, "compressMinSize",
+                             CompressedResponse.defaultMinSize);
+    compressLevel = intPar(config, "compressLevel",
+                           Deflater.DEFAULT_COMPRESSION);
+
+    decompressRequests = !"false".equals(
+            config.getInitParameter("decompressRequests"));
+    maxDecompressionRatio = intPar(config, "maxDecompressionRatio",
+                                   DecompressedRequest.defaultMaxRatio);
+
+    final int responseCacheBytes = intPar(config, "responseCacheBytes", 0);
+    if (responseCacheBytes > 0) {
+      responseCache = new ResponseCache(
+              responseCacheBytes,
+              intPar(config, "responseCacheMaxEntryBytes",
+                     ResponseCache.defaultMaxEntryBytes));
+    }
+
+    propfindEtags = !"false".equals(
+            config.getInitParameter("propfindEtags"));
+
+    dropEmptyPropstat = "true".equals(
+            config.getInitParameter("dropEmptyPropstat"));
+
+    traversalBudget = new TraversalBudget(
+            intPar(config, "propfindMaxNodes", 0),
+            intPar(config, "propfindMaxDepth", 0),
+            intPar(config, "propfindMaxMillis", 0),
+            "true".equals(config.getInitParameter("propfindPaginate")),
+            "true".equals(config.getInitParameter("propfindFiniteDepth")));
+
+    final int prefetchThreads = intPar(config, "prefetchThreads", 0);
+    if (prefetchThreads > 0) {
+      final AtomicInteger threadNum = new AtomicInteger();
+
+      prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, r -> {
+        final Thread t = new Thread(r, "webdav-prefetch-" +
+                threadNum.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+      prefetchMaxInFlight = intPar(config, "prefetchMaxInFlight", 4);
+      prefetchMaxNodes = intPar(config, "prefetchMaxNodes", 10000);
+    }
+
+    final int cacheSize = intPar(config, "requestCacheSize", 256);
+    if (cacheSize > 0) {
+      templateCache = new RequestTemplateCache(
+              cacheSize,
+              intPar(config, "requestCacheMaxBody", 4096));
+    }
+
     addMethods();
   }
 
@@ -92,6 +225,79 @@ public abstract class WebdavServlet extends HttpServlet
     preserveSession = val;
   }
 
+  /**
+   * @return cache of parsed request bodies or null if disabled
+   */
+  public RequestTemplateCache getRequestTemplateCache() {
+    return templateCache;
+  }
+
+  /**
+   * @return limits on xml request bodies
+   */
+  public XmlRequestLimits getXmlRequestLimits() {
+    return xmlLimits;
+  }
+
+  /**
+   * @return policy for flushing streamed responses
+   */
+  public FlushPolicy getFlushPolicy() {
+    return flushPolicy;
+  }
+
+  /**
+   * @return true to send validators for collection PROPFINDs
+   */
+  public boolean getPropfindEtags() {
+    return propfindEtags;
+  }
+
+  /**
+   * @return true to omit empty propstat elements from minimal responses
+   */
+  public boolean getDropEmptyPropstat() {
+    return dropEmptyPropstat;
+  }
+
+  /**
+   * @return cache of multistatus responses or null if disabled
+   */
+  public ResponseCache getResponseCache() {
+    return responseCache;
+  }
+
+  /**
+   * @return limits on the PROPFIND tree walk
+   */
+  public TraversalBudget getTraversalBudget() {
+    return traversalBudget;
+  }
+
+  /**
+   * @param intf namespace interface for the request
+   * @param projection properties requested
+   * @return a prefetcher for a PROPFIND or null if not enabled
+   */
+  public ChildPrefetcher getChildPrefetcher(final WebdavNsIntf intf,
+                                            final PropertyProjection projection) {
+    if ((prefetchExecutor == null) || !intf.getConcurrentGetChildren()) {
+      return null;
+    }
+
+    return new ChildPrefetcher(intf, projection, prefetchExecutor,
+                               prefetchMaxInFlight, prefetchMaxNodes);
+  }
+
+  @Override
+  public void destroy() {
+    if (prefetchExecutor != null) {
+      prefetchExecutor.shutdownNow();
+    }
+
+    super.destroy();
+  }
+
   /** Get an interface for the namespace
    *
    * @param req       HttpServletRequest
@@ -102,11 +308,15 @@ public abstract class WebdavServlet extends HttpServlet
       throws WebdavException;
 
   @Override
-  protected void service(final HttpServletRequest req,
+  protected void service(HttpServletRequest req,
                          HttpServletResponse resp)
       throws ServletException, IOException {
     WebdavNsIntf intf = null;
     boolean serverError = false;
+    AdmissionController.Ticket ticket = null;
+    CompressedResponse cresp = null;
+
+    WebdavNsNode.startRequest();
 
     try {
       debug = getLogger().isDebugEnabled();
@@ -116,7 +326,16 @@ public abstract class WebdavServlet extends HttpServlet
         dumpRequest(req);
       }
 
-      tryWait(req, true);
+      String methodName = req.getHeader("X-HTTP-Method-Override");
+
+      if (methodName == null) {
+        methodName = req.getMethod();
+      }
+
+      if (admission != null) {
+        ticket = admission.admit(req.getRemoteUser(),
+                                 isMutating(methodName));
+      }
 
       intf = getNsIntf(req);
 
@@ -127,15 +346,26 @@ public abstract class WebdavServlet extends HttpServlet
         }
       }
 
+      if (decompressRequests) {
+        req = DecompressedRequest.wrap(req, maxDecompressionRatio);
+      }
+
       if (debug && dumpContent) {
         resp = new CharArrayWrappedResponse(resp,
                                             getLogger());
-      }
+      } else if (compressResponses) {
+        resp.addHeader("Vary", "Accept-Encoding");
 
-      String methodName = req.getHeader("X-HTTP-Method-Override");
+        if (CompressedResponse.acceptsGzip(req)) {
+          cresp = new CompressedResponse(resp, compressMinSize,
+                                         compressLevel);
+          resp = cresp;
+        }
+      }
 
-      if (methodName == null) {
-        methodName = req.getMethod();
+      if (intf.negotiatesFormat(req)) {
+        /* Xml or JSON - caches must not mix them up */
+        resp.addHeader("Vary", "Accept");
       }
 
       final MethodBase method = intf.getMethod(methodName);
@@ -158,6 +388,8 @@ public abstract class WebdavServlet extends HttpServlet
     } catch (final Throwable t) {
       serverError = handleException(intf, t, resp, serverError);
     } finally {
+      WebdavNsNode.endRequest();
+
       if (intf != null) {
         try {
           intf.close();
@@ -166,9 +398,19 @@ public abstract class WebdavServlet extends HttpServlet
         }
       }
 
-      try {
-        tryWait(req, false);
-      } catch (Throwable t) {}
+      if (admission != null) {
+        admission.release(ticket);
+      }
+
+      if (cresp != null) {
+        try {
+          cresp.finish();
+        } catch (final Throwable t) {
+          if (debug) {
+            error(t);
+          }
+        }
+      }
 
       if (debug && dumpContent &&
           (resp instanceof CharArrayWrappedResponse)) {
@@ -214,13 +456,19 @@ public abstract class WebdavServlet extends HttpServlet
   }
 
   /* Return true if it's a server error */
-  private boolean handleException(final WebdavNsIntf intf, final Throwable t,
+  private boolean handleException(final WebdavNsIntf intf, Throwable t,
                                   final HttpServletResponse resp,
                                   boolean serverError) {
     if (serverError) {
       return true;
     }
 
+    if (DecompressedRequest.isLimitExceeded(t)) {
+      t = new WebdavException(
+              HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+              "Decompressed request body too large");
+    }
+
     try {
       if (t instanceof WebdavException) {
         WebdavException wde = (WebdavException)t;
@@ -262,7 +510,7 @@ public abstract class WebdavServlet extends HttpServlet
           resp.setStatus(wde.getStatusCode());
           resp.setContentType("text/xml; charset=UTF-8");
           if (!emitError(intf, errorTag, wde.getMessage(),
-                         resp.getWriter())) {
+                         getErrorWriter(resp))) {
             StringWriter sw = new StringWriter();
             emitError(intf, errorTag, wde.getMessage(), sw);
 
@@ -296,6 +544,18 @@ public abstract class WebdavServlet extends HttpServlet
     }
   }
 
+  /* The response may already have had its output stream taken by the
+   * utf-8 emitter.
+   */
+  private Writer getErrorWriter(final HttpServletResponse resp) throws IOException {
+    try {
+      return resp.getWriter();
+    } catch (final IllegalStateException ise) {
+      return new OutputStreamWriter(resp.getOutputStream(),
+                                    StandardCharsets.UTF_8);
+    }
+  }
+
   private boolean emitError(final WebdavNsIntf intf,
                             final QName errorTag,
                             final String extra,
@@ -318,67 +578,72 @@ public abstract class WebdavServlet extends HttpServlet
       return false;
     }
   }
-  /** Add methods for this namespace
+  /** Add methods for this namespace. Methods registered as safe run
+   * concurrently for a principal. Methods registered without a safe flag
+   * are classified by name - see isMutating.
    *
    */
   protected void addMethods() {
-    methods.put("ACL", new MethodInfo(AclMethod.class, false));
-    methods.put("COPY", new MethodInfo(CopyMethod.class, false));
-    methods.put("GET", new MethodInfo(GetMethod.class, false));
-    methods.put("HEAD", new MethodInfo(HeadMethod.class, false));
-    methods.put("OPTIONS", new MethodInfo(OptionsMethod.class, false));
-    methods.put("PROPFIND", new MethodInfo(PropFindMethod.class, false));
-
-    methods.put("DELETE", new MethodInfo(DeleteMethod.class, true));
-    methods.put("MKCOL", new MethodInfo(MkcolMethod.class, true));
-    methods.put("MOVE", new MethodInfo(MoveMethod.class, true));
-    methods.put("POST", new MethodInfo(PostMethod.class, true));
-    methods.put("PROPPATCH", new MethodInfo(PropPatchMethod.class, true));
-    methods.put("PUT", new MethodInfo(PutMethod.class, true));
-
-    //methods.put("LOCK", new MethodInfo(LockMethod.class, true));
-    //methods.put("UNLOCK", new MethodInfo(UnlockMethod.class, true));
+    methods.put("ACL", new MethodInfo(AclMethod::new, false));
+    methods.put("COPY", new MethodInfo(CopyMethod::new, false));
+    methods.put("GET", new MethodInfo(GetMethod::new, false, true));
+    methods.put("HEAD", new MethodInfo(HeadMethod::new, false, true));
+    methods.put("OPTIONS", new MethodInfo(OptionsMethod::new, false, true));
+    methods.put("PROPFIND", new MethodInfo(PropFindMethod::new, false, true));
+
+    methods.put("DELETE", new MethodInfo(DeleteMethod::new, true));
+    methods.put("MKCOL", new MethodInfo(MkcolMethod::new, true));
+    methods.put("MOVE", new MethodInfo(MoveMethod::new, true));
+    methods.put("POST", new MethodInfo(PostMethod::new, true));
+    methods.put("PROPPATCH", new MethodInfo(PropPatchMethod::new, true));
+    methods.put("PUT", new MethodInfo(PutMethod::new, true));
+
+    //methods.put("LOCK", new MethodInfo(LockMethod::new, true));
+    //methods.put("UNLOCK", new MethodInfo(UnlockMethod::new, true));
   }
 
-  private void tryWait(final HttpServletRequest req, final boolean in) throws Throwable {
-    Waiter wtr = null;
-    synchronized (waiters) {
-      //String key = req.getRequestedSessionId();
-      String key = req.getRemoteUser();
-      if (key == null) {
-        return;
-      }
+  /** Methods registered as safe may run concurrently for a principal.
+   * Methods registered without a safe flag - for example with the older
+   * MethodInfo(Class, boolean) constructor - are safe if they are GET,
+   * HEAD, OPTIONS, PROPFIND or REPORT. Anything else, including methods
+   * we don't know, is treated as mutating.
+   *
+   * <p>A subclass registering a REPORT which can change state should
+   * register it with safe false, or override this method.
+   *
+   * @param methodName from the request
+   * @return true if requests for this method must be serialized
+   */
+  protected boolean isMutating(final String methodName) {
+    final String name = methodName.toUpperCase();
+    final MethodInfo mi = methods.get(name);
 
-      wtr = waiters.get(key);
-      if (wtr == null) {
-        if (!in) {
-          return;
-        }
+    if (mi == null) {
+      return true;
+    }
 
-        wtr = new Waiter();
-        wtr.active = true;
-        waiters.put(key, wtr);
-        return;
-      }
+    if (mi.getSafeSpecified()) {
+      return !mi.getSafe();
     }
 
-    synchronized (wtr) {
-      if (!in) {
-        wtr.active = false;
-        wtr.notify();
-        return;
-      }
+    return !safeByName.contains(name);
+  }
 
-      wtr.waiting++;
-      while (wtr.active) {
-        if (debug) {
-          log.debug("in: waiters=" + wtr.waiting);
-        }
+  private int intPar(final ServletConfig config,
+                     final String name,
+                     final int def) {
+    final String val = config.getInitParameter(name);
 
-        wtr.wait();
-      }
-      wtr.waiting--;
-      wtr.active = true;
+    if (val == null) {
+      return def;
+    }
+
+    try {
+      return Integer.parseInt(val.trim());
+    } catch (final NumberFormatException nfe) {
+      getLogger().warn("Bad value for init parameter " + name +
+                               ": " + val);
+      return def;
     }
   }
 
@@ -394,15 +659,7 @@ public abstract class WebdavServlet extends HttpServlet
    */
   @Override
   public void sessionDestroyed(final HttpSessionEvent se) {
-    HttpSession session = se.getSession();
-    String sessid = session.getId();
-    if (sessid == null) {
-      return;
-    }
-
-    synchronized (waiters) {
-      waiters.remove(sessid);
-    }
+    /* Admission gates are keyed by principal and evicted when idle */
   }
 
   /** Debug
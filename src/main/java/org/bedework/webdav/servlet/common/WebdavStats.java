@@ -0,0 +1,88 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Named counters for monitoring the webdav server. Counters are created
+ * on first use and live for the life of the class loader.
+ */
+public final class WebdavStats {
+  private static final ConcurrentHashMap<String, AtomicLong> counters =
+          new ConcurrentHashMap<>();
+
+  private WebdavStats() {
+  }
+
+  /**
+   * @param name of counter
+   * @return the counter - created if needed
+   */
+  public static AtomicLong counter(final String name) {
+    return counters.computeIfAbsent(name, k -> new AtomicLong());
+  }
+
+  /** Increment the named counter
+   *
+   * @param name of counter
+   */
+  public static void inc(final String name) {
+    counter(name).incrementAndGet();
+  }
+
+  /** Add to the named counter
+   *
+   * @param name of counter
+   * @param val to add
+   */
+  public static void add(final String name,
+                         final long val) {
+    counter(name).addAndGet(val);
+  }
+
+  /**
+   * @param name of counter
+   * @return current value - 0 if never used
+   */
+  public static long get(final String name) {
+    final AtomicLong ct = counters.get(name);
+
+    if (ct == null) {
+      return 0;
+    }
+
+    return ct.get();
+  }
+
+  /**
+   * @return a sorted snapshot of all the counters
+   */
+  public static Map<String, Long> getCounts() {
+    final Map<String, Long> res = new TreeMap<>();
+
+    for (final Map.Entry<String, AtomicLong> ent: counters.entrySet()) {
+      res.put(ent.getKey(), ent.getValue().get());
+    }
+
+    return res;
+  }
+}
@@ -0,0 +1,321 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.shared.WebdavException;
+import org.bedework.webdav.servlet.shared.WebdavNsIntf;
+
+import java.io.Reader;
+import java.io.StringReader;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/** Limits applied to xml request bodies. The body length is checked
+ * against the content length and counted as it is read. The structure -
+ * nesting depth, number of elements and number of attributes on any
+ * element - is checked by the pull parser, either as the body is parsed or
+ * in a scan made before a DOM is built. Document type declarations are
+ * rejected.
+ *
+ * <p>A body which is too long gets a 413, anything else a 400.
+ */
+public class XmlRequestLimits {
+  /** Name of counter for rejected requests */
+  public static final String rejectedCounter = "xmlRequestLimits.rejected";
+
+  /** Default maximum body length in characters */
+  public static final int defaultMaxBodyLength = 1024 * 1024;
+
+  /** Default maximum element nesting */
+  public static final int defaultMaxDepth = 64;
+
+  /** Default maximum elements in a body */
+  public static final int defaultMaxElements = 50000;
+
+  /** Default maximum attributes on an element */
+  public static final int defaultMaxAttributes = 64;
+
+  private static final XmlRequestLimits defaultLimits =
+          new XmlRequestLimits(defaultMaxBodyLength,
+                               defaultMaxDepth,
+                               defaultMaxElements,
+                               defaultMaxAttributes);
+
+  private final int maxBodyLength;
+
+  private final int maxDepth;
+
+  private final int maxElements;
+
+  private final int maxAttributes;
+
+  /* Counts as the pull parser moves through the body */
+  private class LimitedReader extends StreamReaderDelegate {
+    private int depth;
+
+    private int elements;
+
+    LimitedReader(final XMLStreamReader rdr) {
+      super(rdr);
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+      final int ev = super.next();
+
+      if (ev == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+        elements++;
+
+        if (depth > maxDepth) {
+          throw limitExceeded("Elements nested too deeply");
+        }
+
+        if (elements > maxElements) {
+          throw limitExceeded("Too many elements");
+        }
+
+        if (getAttributeCount() > maxAttributes) {
+          throw limitExceeded("Too many attributes");
+        }
+      } else if (ev == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      } else if ((ev == XMLStreamConstants.DTD) ||
+                 (ev == XMLStreamConstants.ENTITY_REFERENCE)) {
+        throw limitExceeded("Document type declarations not allowed");
+      }
+
+      return ev;
+    }
+
+    /* The delegate would pass these to the wrapped reader and the events
+       they consume would not be counted. */
+
+    @Override
+    public String getElementText() throws XMLStreamException {
+      if (getEventType() != XMLStreamConstants.START_ELEMENT) {
+        throw new XMLStreamException("Not at a start element", getLocation());
+      }
+
+      final StringBuilder sb = new StringBuilder();
+
+      for (;;) {
+        final int ev = next();
+
+        switch (ev) {
+          case XMLStreamConstants.END_ELEMENT:
+            return sb.toString();
+
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+          case XMLStreamConstants.SPACE:
+            sb.append(getText());
+            break;
+
+          case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          case XMLStreamConstants.COMMENT:
+            break;
+
+          default:
+            throw new XMLStreamException("Expected text only",
+                                         getLocation());
+        }
+      }
+    }
+
+    @Override
+    public int nextTag() throws XMLStreamException {
+      for (;;) {
+        final int ev = next();
+
+        switch (ev) {
+          case XMLStreamConstants.START_ELEMENT:
+          case XMLStreamConstants.END_ELEMENT:
+            return ev;
+
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+            if (!isWhiteSpace()) {
+              throw new XMLStreamException("Expected a tag", getLocation());
+            }
+            break;
+
+          case XMLStreamConstants.SPACE:
+          case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          case XMLStreamConstants.COMMENT:
+            break;
+
+          default:
+            throw new XMLStreamException("Expected a tag", getLocation());
+        }
+      }
+    }
+  }
+
+  /**
+   * @param maxBodyLength maximum body length in characters
+   * @param maxDepth maximum element nesting
+   * @param maxElements maximum elements in a body
+   * @param maxAttributes maximum attributes on an element
+   */
+  public XmlRequestLimits(final int maxBodyLength,
+                          final int maxDepth,
+                          final int maxElements,
+                          final int maxAttributes) {
+    this.maxBodyLength = maxBodyLength;
+    this.maxDepth = maxDepth;
+    this.maxElements = maxElements;
+    this.maxAttributes = maxAttributes;
+  }
+
+  /**
+   * @return limits with the default values
+   */
+  public static XmlRequestLimits getDefault() {
+    return defaultLimits;
+  }
+
+  /**
+   * @param intf the namespace interface - may be null
+   * @return limits configured for the servlet or the defaults
+   */
+  public static XmlRequestLimits getLimits(final WebdavNsIntf intf) {
+    if ((intf == null) || (intf.getServlet() == null)) {
+      return defaultLimits;
+    }
+
+    final XmlRequestLimits limits = intf.getServlet().getXmlRequestLimits();
+
+    if (limits == null) {
+      return defaultLimits;
+    }
+
+    return limits;
+  }
+
+  /**
+   * @return maximum body length in characters
+   */
+  public int getMaxBodyLength() {
+    return maxBodyLength;
+  }
+
+  /** Read the body checking the length as we go.
+   *
+   * @param rdr for the body
+   * @param contentLength from the request or -1 if unknown
+   * @return the body
+   * @throws WebdavException 413 if too long
+   */
+  public String read(final Reader rdr,
+                     final int contentLength) throws WebdavException {
+    if (contentLength > maxBodyLength) {
+      throw tooLarge();
+    }
+
+    final StringBuilder sb;
+    if (contentLength > 0) {
+      sb = new StringBuilder(contentLength);
+    } else {
+      sb = new StringBuilder();
+    }
+
+    final char[] buff = new char[4096];
+
+    try {
+      for (;;) {
+        final int ct = rdr.read(buff);
+
+        if (ct < 0) {
+          break;
+        }
+
+        if ((sb.length() + ct) > maxBodyLength) {
+          throw tooLarge();
+        }
+
+        sb.append(buff, 0, ct);
+      }
+    } catch (final WebdavException we) {
+      throw we;
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * @param rdr pull parser positioned before the root element
+   * @return a pull parser which checks these limits
+   */
+  public XMLStreamReader limit(final XMLStreamReader rdr) {
+    return new LimitedReader(rdr);
+  }
+
+  /** Run through the body checking it against the limits. Used before
+   * building a DOM.
+   *
+   * @param body of request
+   * @throws WebdavException 400 if it fails
+   */
+  public void scan(final String body) throws WebdavException {
+    final XMLStreamReader rdr =
+            XmlRequestParser.getStreamReader(new StringReader(body), this);
+
+    try {
+      while (rdr.hasNext()) {
+        rdr.next();
+      }
+    } catch (final XMLStreamException xse) {
+      throw XmlRequestParser.badRequest(xse);
+    } finally {
+      XmlRequestParser.close(rdr);
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Thrown by the parser when a limit is exceeded */
+  static class LimitException extends XMLStreamException {
+    LimitException(final String msg) {
+      super(msg);
+    }
+  }
+
+  private XMLStreamException limitExceeded(final String msg) {
+    WebdavStats.inc(rejectedCounter);
+
+    return new LimitException(msg);
+  }
+
+  private WebdavException tooLarge() {
+    WebdavStats.inc(rejectedCounter);
+
+    return new WebdavException(
+            HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+            "Request body too large");
+  }
+}
@@ -0,0 +1,286 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.common;
+
+import org.bedework.webdav.servlet.shared.WebdavBadRequest;
+import org.bedework.webdav.servlet.shared.WebdavException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.Reader;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/** Parsing of xml request bodies.
+ *
+ * <p>The factories are located and configured once. DOM builders are kept
+ * per thread and reset after each use. Most bodies can be handled with the
+ * pull parser and a few helpers here which step through the element
+ * structure of the request.
+ */
+public final class XmlRequestParser {
+  private static final DocumentBuilderFactory docFactory;
+
+  private static final XMLInputFactory inputFactory;
+
+  private static final ThreadLocal<DocumentBuilder> builders =
+          new ThreadLocal<>();
+
+  static {
+    /* No document type declarations, no external entities. */
+    docFactory = DocumentBuilderFactory.newInstance();
+    docFactory.setNamespaceAware(true);
+    docFactory.setExpandEntityReferences(false);
+    docFactory.setXIncludeAware(false);
+    setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+    setFeature("http://xml.org/sax/features/external-general-entities",
+               false);
+    setFeature("http://xml.org/sax/features/external-parameter-entities",
+               false);
+    setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd",
+               false);
+
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                             false);
+  }
+
+  private XmlRequestParser() {
+  }
+
+  /** Parse a reader and return the DOM representation.
+   *
+   * @param rdr        Reader
+   * @return Document  Parsed body or null for no reader
+   * @throws WebdavException 400 for badly formed xml
+   */
+  public static Document parseDocument(final Reader rdr) throws WebdavException {
+    if (rdr == null) {
+      return null;
+    }
+
+    DocumentBuilder builder = null;
+
+    try {
+      builder = builders.get();
+
+      if (builder == null) {
+        builder = docFactory.newDocumentBuilder();
+        builders.set(builder);
+      }
+
+      return builder.parse(new InputSource(rdr));
+    } catch (final SAXException e) {
+      throw new WebdavBadRequest();
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    } finally {
+      if (builder != null) {
+        builder.reset();
+      }
+    }
+  }
+
+  /**
+   * @param rdr        Reader
+   * @return a pull parser positioned before the root element or null for
+   *         no reader
+   * @throws WebdavException on error
+   */
+  public static XMLStreamReader getStreamReader(final Reader rdr) throws WebdavException {
+    return getStreamReader(rdr, null);
+  }
+
+  /**
+   * @param rdr        Reader
+   * @param limits     applied while parsing - null for none
+   * @return a pull parser positioned before the root element or null for
+   *         no reader
+   * @throws WebdavException on error
+   */
+  public static XMLStreamReader getStreamReader(final Reader rdr,
+                                                final XmlRequestLimits limits) throws WebdavException {
+    if (rdr == null) {
+      return null;
+    }
+
+    try {
+      final XMLStreamReader xrdr = inputFactory.createXMLStreamReader(rdr);
+
+      if (limits == null) {
+        return xrdr;
+      }
+
+      return limits.limit(xrdr);
+    } catch (final XMLStreamException e) {
+      throw badRequest(e);
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
+
+  /** Move to the next child element of the current element, skipping
+   * white space, comments and processing instructions.
+   *
+   * @param rdr pull parser
+   * @return true if positioned at the start of a child element, false if
+   *         positioned at the end of the current element.
+   * @throws WebdavException 400 for text content or badly formed xml
+   */
+  public static boolean nextElement(final XMLStreamReader rdr) throws WebdavException {
+    try {
+      while (rdr.hasNext()) {
+        switch (rdr.next()) {
+          case XMLStreamConstants.START_ELEMENT:
+            return true;
+
+          case XMLStreamConstants.END_ELEMENT:
+            return false;
+
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+            if (!rdr.isWhiteSpace()) {
+              throw new WebdavBadRequest("Unexpected text content");
+            }
+            break;
+
+          default:
+            // Ignore
+        }
+      }
+
+      throw new WebdavBadRequest("Unexpected end of document");
+    } catch (final XMLStreamException e) {
+      throw badRequest(e);
+    }
+  }
+
+  /** Skip the current element and all its content. On return the parser is
+   * positioned at the end of the element.
+   *
+   * @param rdr pull parser positioned at a start element
+   * @throws WebdavException 400 for badly formed xml
+   */
+  public static void skipElement(final XMLStreamReader rdr) throws WebdavException {
+    try {
+      int depth = 1;
+
+      while (depth > 0) {
+        final int ev = rdr.next();
+
+        if (ev == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+        } else if (ev == XMLStreamConstants.END_ELEMENT) {
+          depth--;
+        }
+      }
+    } catch (final XMLStreamException e) {
+      throw badRequest(e);
+    }
+  }
+
+  /** Get the trimmed text content of the current element. On return the
+   * parser is positioned at the end of the element.
+   *
+   * @param rdr pull parser positioned at a start element
+   * @return String content
+   * @throws WebdavException 400 for element content or badly formed xml
+   */
+  public static String getElementText(final XMLStreamReader rdr) throws WebdavException {
+    try {
+      return rdr.getElementText().trim();
+    } catch (final XMLStreamException e) {
+      throw badRequest(e);
+    }
+  }
+
+  /**
+   * @param rdr pull parser positioned at a start element
+   * @param tag expected name
+   * @return true if the current element has the given name
+   */
+  public static boolean matches(final XMLStreamReader rdr,
+                                final QName tag) {
+    return tag.getLocalPart().equals(rdr.getLocalName()) &&
+            tag.getNamespaceURI().equals(nsOf(rdr));
+  }
+
+  /**
+   * @param rdr pull parser positioned at a start element
+   * @return name of current element
+   */
+  public static QName getName(final XMLStreamReader rdr) {
+    return new QName(nsOf(rdr), rdr.getLocalName());
+  }
+
+  /** Close the parser - ignoring any errors
+   *
+   * @param rdr pull parser - may be null
+   */
+  public static void close(final XMLStreamReader rdr) {
+    if (rdr == null) {
+      return;
+    }
+
+    try {
+      rdr.close();
+    } catch (final Throwable ignored) {
+    }
+  }
+
+  static WebdavBadRequest badRequest(final XMLStreamException e) {
+    if (e instanceof XmlRequestLimits.LimitException) {
+      return new WebdavBadRequest(e.getMessage());
+    }
+
+    return new WebdavBadRequest();
+  }
+
+  private static void setFeature(final String name,
+                                 final boolean val) {
+    try {
+      docFactory.setFeature(name, val);
+    } catch (final Throwable ignored) {
+      // Not supported by this parser
+    }
+  }
+
+  private static String nsOf(final XMLStreamReader rdr) {
+    final String ns = rdr.getNamespaceURI();
+
+    if (ns == null) {
+      return "";
+    }
+
+    return ns;
+  }
+}
@@ -0,0 +1,128 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.shared;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+/** The properties a request will ask for on the nodes being fetched.
+ * Passed to the node fetching methods of WebdavNsIntf so that an
+ * implementation may load less.
+ *
+ * <p>Implementations must still return a complete node - this is a hint.
+ */
+public class PropertyProjection {
+  /** All properties and content - what we have always asked for */
+  public static final PropertyProjection all =
+          new PropertyProjection(null, true);
+
+  private final Set<QName> props;
+
+  private final boolean content;
+
+  /**
+   * @param props names of properties - null for all
+   * @param content true if the content may be needed
+   */
+  public PropertyProjection(final Collection<QName> props,
+                            final boolean content) {
+    if (props == null) {
+      this.props = null;
+    } else {
+      this.props = Collections.unmodifiableSet(new LinkedHashSet<>(props));
+    }
+
+    this.content = content;
+  }
+
+  /**
+   * @param props requested properties - null for all
+   * @param intf says which properties need the content
+   * @return a projection for those properties
+   */
+  public static PropertyProjection forProperties(
+          final Collection<WebdavProperty> props,
+          final WebdavNsIntf intf) {
+    if (props == null) {
+      return all;
+    }
+
+    final Set<QName> names = new LinkedHashSet<>();
+
+    for (final WebdavProperty prop: props) {
+      names.add(prop.getTag());
+    }
+
+    return new PropertyProjection(names, intf.needsContent(props));
+  }
+
+  /**
+   * @return true if all properties are wanted
+   */
+  public boolean isAll() {
+    return props == null;
+  }
+
+  /**
+   * @return read only set of names - null for all
+   */
+  public Set<QName> getProperties() {
+    return props;
+  }
+
+  /**
+   * @param tag name of property
+   * @return true if the property is wanted
+   */
+  public boolean includes(final QName tag) {
+    return (props == null) || props.contains(tag);
+  }
+
+  /**
+   * @return true if the content may be needed
+   */
+  public boolean getContent() {
+    return content;
+  }
+
+  /**
+   * @param tag name of property
+   * @return a projection with this property added
+   */
+  public PropertyProjection with(final QName tag) {
+    if (includes(tag)) {
+      return this;
+    }
+
+    final Set<QName> names = new LinkedHashSet<>(props);
+    names.add(tag);
+
+    return new PropertyProjection(names, content);
+  }
+
+  @Override
+  public String toString() {
+    return "PropertyProjection{props=" + props +
+            ", content=" + content + "}";
+  }
+}
@@ -0,0 +1,194 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.shared;
+
+import org.bedework.webdav.servlet.shared.WebdavNsNode.PropertyTagEntry;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/** Maps property names to the code which generates their values so that
+ * finding the generator is a single lookup.
+ *
+ * <p>A subclass of a node or namespace interface creates a registry from
+ * its parent's and adds or replaces entries, for example
+ * <pre>
+ *   private static final PropertyRegistry&lt;MyNode&gt; props =
+ *         new PropertyRegistry&lt;&gt;(WebdavNsNode.getPropertyRegistry());
+ *
+ *   static {
+ *     props.add(MyTags.color, true, (node, tag, intf, allProp) -&gt; {...});
+ *   }
+ * </pre>
+ * Registries are filled in by static initializers and are read only after.
+ *
+ * @param <N> type of node handled
+ */
+public class PropertyRegistry<N extends WebdavNsNode> {
+  /** Generates the value of a property
+   *
+   * @param <N> type of node handled
+   */
+  public interface Generator<N extends WebdavNsNode> {
+    /**
+     * @param node for which we want the value
+     * @param tag name of property
+     * @param intf namespace interface - supplies the emitter
+     * @param allProp true if we're doing allprop
+     * @return false if the property has no value for this node
+     * @throws Throwable on error
+     */
+    boolean generate(N node,
+                     QName tag,
+                     WebdavNsIntf intf,
+                     boolean allProp) throws Throwable;
+  }
+
+  private static class Entry<N extends WebdavNsNode> {
+    final PropertyTagEntry tagEntry;
+
+    final Generator<? super N> generator;
+
+    Entry(final PropertyTagEntry tagEntry,
+          final Generator<? super N> generator) {
+      this.tagEntry = tagEntry;
+      this.generator = generator;
+    }
+  }
+
+  private final Map<QName, Entry<N>> entries = new HashMap<>();
+
+  private final Map<QName, PropertyTagEntry> tagEntries = new HashMap<>();
+
+  /** An empty registry
+   */
+  public PropertyRegistry() {
+  }
+
+  /** A registry starting with the entries of another
+   *
+   * @param parent registry of a superclass
+   */
+  public PropertyRegistry(final PropertyRegistry<? super N> parent) {
+    for (final Map.Entry<QName, ? extends Entry<?>> ent:
+            parent.entries.entrySet()) {
+      add(ent.getValue().tagEntry, generatorOf(ent.getValue()));
+    }
+  }
+
+  /** Add or replace a property which is generated from metadata only.
+   *
+   * @param tag name of property
+   * @param inAllProp true if returned for allprop
+   * @param generator generates the value - null if the property is known
+   *                  but has no generator here.
+   */
+  public void add(final QName tag,
+                  final boolean inAllProp,
+                  final Generator<? super N> generator) {
+    add(tag, inAllProp, false, generator);
+  }
+
+  /** Add or replace a property.
+   *
+   * @param tag name of property
+   * @param inAllProp true if returned for allprop
+   * @param needsContent true if the content is needed for the value
+   * @param generator generates the value - null if the property is known
+   *                  but has no generator here.
+   */
+  public void add(final QName tag,
+                  final boolean inAllProp,
+                  final boolean needsContent,
+                  final Generator<? super N> generator) {
+    add(new PropertyTagEntry(tag, inAllProp, needsContent), generator);
+  }
+
+  /**
+   * @param tag name of property
+   * @return true if the property is registered
+   */
+  public boolean isKnown(final QName tag) {
+    return entries.containsKey(tag);
+  }
+
+  /**
+   * @param tag name of property
+   * @return the entry for the property or null
+   */
+  public PropertyTagEntry getTagEntry(final QName tag) {
+    return tagEntries.get(tag);
+  }
+
+  /**
+   * @return read only view of the entries
+   */
+  public Collection<PropertyTagEntry> getTagEntries() {
+    return Collections.unmodifiableCollection(tagEntries.values());
+  }
+
+  /** Generate the value of a property.
+   *
+   * @param node for which we want the value
+   * @param tag name of property
+   * @param intf namespace interface
+   * @param allProp true if we're doing allprop
+   * @return false if unknown or no value
+   * @throws WebdavException on error
+   */
+  public boolean generate(final N node,
+                          final QName tag,
+                          final WebdavNsIntf intf,
+                          final boolean allProp) throws WebdavException {
+    final Entry<N> ent = entries.get(tag);
+
+    if ((ent == null) || (ent.generator == null)) {
+      return false;
+    }
+
+    try {
+      return ent.generator.generate(node, tag, intf, allProp);
+    } catch (final WebdavException we) {
+      throw we;
+    } catch (final Throwable t) {
+      throw new WebdavException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void add(final PropertyTagEntry tagEntry,
+                   final Generator<? super N> generator) {
+    entries.put(tagEntry.tag, new Entry<>(tagEntry, generator));
+    tagEntries.put(tagEntry.tag, tagEntry);
+  }
+
+  /* Entries in a superclass registry handle a supertype of N */
+  @SuppressWarnings("unchecked")
+  private static <N extends WebdavNsNode> Generator<? super N> generatorOf(
+          final Entry<?> ent) {
+    return (Generator<? super N>)ent.generator;
+  }
+}
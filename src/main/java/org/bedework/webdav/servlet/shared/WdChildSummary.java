@@ -0,0 +1,78 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.webdav.servlet.shared;
+
+/** The little we need about a child to answer a PROPFIND for getetag,
+ * resourcetype and getcontenttype without building a node.
+ *
+ * <p>Returned by WebdavNsIntf.getChildSummaries.
+ */
+public class WdChildSummary {
+  private final String name;
+
+  private final String etag;
+
+  private final boolean collection;
+
+  private final String contentType;
+
+  /**
+   * @param name last path segment - not encoded
+   * @param etag strong etag value including quotes
+   * @param collection true for a collection
+   * @param contentType null if none or not retrievable
+   */
+  public WdChildSummary(final String name,
+                        final String etag,
+                        final boolean collection,
+                        final String contentType) {
+    this.name = name;
+    this.etag = etag;
+    this.collection = collection;
+    this.contentType = contentType;
+  }
+
+  /**
+   * @return last path segment - not encoded
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return strong etag value including quotes
+   */
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * @return true for a collection
+   */
+  public boolean isCollection() {
+    return collection;
+  }
+
+  /**
+   * @return null if none or not retrievable
+   */
+  public String getContentType() {
+    return contentType;
+  }
+}
@@ -22,7 +22,6 @@ import org.bedework.access.Acl;
 import org.bedework.util.misc.Logged;
 import org.bedework.util.misc.Util;
 import org.bedework.util.xml.XmlEmit;
-import org.bedework.util.xml.XmlEmit.NameSpace;
 import org.bedework.util.xml.XmlUtil;
 import org.bedework.util.xml.tagdefs.WebdavTags;
 import org.bedework.webdav.servlet.common.AccessUtil;
@@ -30,10 +29,15 @@ import org.bedework.webdav.servlet.common.Headers;
 import org.bedework.webdav.servlet.common.Headers.IfHeader;
 import org.bedework.webdav.servlet.common.Headers.IfHeader.TagOrToken;
 import org.bedework.webdav.servlet.common.Headers.IfHeaders;
+import org.bedework.webdav.servlet.common.JsonEmit;
 import org.bedework.webdav.servlet.common.MethodBase;
 import org.bedework.webdav.servlet.common.MethodBase.MethodInfo;
+import org.bedework.webdav.servlet.common.NamespaceRegistry;
+import org.bedework.webdav.servlet.common.Utf8XmlEmit;
+import org.bedework.webdav.servlet.common.WebdavRequestContext;
 import org.bedework.webdav.servlet.common.WebdavServlet;
 import org.bedework.webdav.servlet.common.WebdavUtils;
+import org.bedework.webdav.servlet.common.XmlRequestParser;
 import org.bedework.webdav.servlet.shared.serverInfo.Feature;
 import org.bedework.webdav.servlet.shared.serverInfo.ServerInfo;
 
@@ -57,6 +61,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.UUID;
 import java.util.function.Supplier;
@@ -64,6 +69,7 @@ import java.util.function.Supplier;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamReader;
 
 /** This acts as an interface to the underlying namespace for which this
  * servlet is acting as a gateway. This could be a file system, a set of
@@ -132,7 +138,7 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
                    final boolean dumpContent) throws WebdavException {
     this.servlet = servlet;
     this.req = req;
-    xml = new XmlEmit();
+    xml = makeXmlEmit(req);
     this.methods = methods;
     this.dumpContent = dumpContent;
 
@@ -146,6 +152,44 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
     urlPrefix = WebdavUtils.getUrlPrefix(req);
 
     addNamespace(xml);
+
+    try {
+      NamespaceRegistry.addTo(xml);
+    } catch (final IOException ioe) {
+      throw new WebdavException(ioe);
+    }
+  }
+
+  /** Create the emitter for this request. PROPFIND and REPORT responses
+   * are written as JSON if the client prefers it. Override to support
+   * other formats.
+   *
+   * @param req http request
+   * @return the emitter
+   */
+  protected XmlEmit makeXmlEmit(final HttpServletRequest req) {
+    if (negotiatesFormat(req) && JsonEmit.accepts(req)) {
+      return new JsonEmit();
+    }
+
+    return new Utf8XmlEmit();
+  }
+
+  /** The servlet adds "Vary: Accept" to the response when this is true.
+   * Override along with makeXmlEmit.
+   *
+   * @param req http request
+   * @return true if the format of the response depends on Accept
+   */
+  public boolean negotiatesFormat(final HttpServletRequest req) {
+    String method = req.getHeader("X-HTTP-Method-Override");
+
+    if (method == null) {
+      method = req.getMethod();
+    }
+
+    return "PROPFIND".equalsIgnoreCase(method) ||
+            "REPORT".equalsIgnoreCase(method);
   }
 
   /**
@@ -155,6 +199,22 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
     return account;
   }
 
+  /** Principals in the same access class see the same responses for the
+   * node, so cached responses may be shared between them. The default
+   * puts each principal in its own class. Return null to prevent caching.
+   *
+   * @param node the response is about
+   * @return access class or null
+   * @throws WebdavException on error
+   */
+  public String getAccessClass(final WebdavNsNode node) throws WebdavException {
+    if (account == null) {
+      return "unauthenticated";
+    }
+
+    return "account:" + account;
+  }
+
   /**
    * @return XmlEmit xmlemitter
    */
@@ -335,7 +395,7 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
     }
 
     try {
-      MethodBase mb = (MethodBase)mi.getMethodClass().newInstance();
+      final MethodBase mb = mi.newMethod();
 
       mb.init(this, dumpContent);
 
@@ -481,7 +541,7 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
    */
   public void addNamespace(final XmlEmit xml) throws WebdavException {
     try {
-      xml.addNs(new NameSpace(WebdavTags.namespace, "DAV"), true);
+      Utf8XmlEmit.addNamespace(xml, WebdavTags.namespace, "DAV", true);
     } catch (Throwable t) {
       throw new WebdavException(t);
     }
@@ -573,6 +633,27 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
                                        boolean addMember)
       throws WebdavException;
 
+  /** Retrieves a node by uri, following any links. The projection says
+   * which properties will be asked for. The default ignores it.
+   *
+   * @param uri              String decoded uri of the node to retrieve
+   * @param existence        Say's something about the state of existence
+   * @param nodeType         Say's something about the type of node
+   * @param addMember        Called from POST with addMember
+   * @param projection       properties that will be requested
+   * @return WebdavNsNode    node specified by the URI or the node aliased by
+   *                         the node at the URI.
+   * @throws WebdavException on error
+   */
+  public WebdavNsNode getNode(final String uri,
+                              final int existence,
+                              final int nodeType,
+                              final boolean addMember,
+                              final PropertyProjection projection)
+      throws WebdavException {
+    return getNode(uri, existence, nodeType, addMember);
+  }
+
   /** Stores/updates an object.
    *
    * @param node             node in question
@@ -599,6 +680,98 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
           WebdavNsNode node,
           Supplier<Object> filterGetter) throws WebdavException;
 
+  /** Returns the immediate children of a node. The projection says which
+   * properties will be asked for. The default ignores it.
+   *
+   * @param node             node in question
+   * @param filterGetter     gets a filter - may be null
+   * @param projection       properties that will be requested
+   * @return Collection      of WebdavNsNode children
+   * @throws WebdavException on error
+   */
+  public Collection<WebdavNsNode> getChildren(
+          final WebdavNsNode node,
+          final Supplier<Object> filterGetter,
+          final PropertyProjection projection) throws WebdavException {
+    return getChildren(node, filterGetter);
+  }
+
+  /** Retrieves the nodes for a number of uris, for example for a multiget
+   * REPORT. Implementations which can fetch many at once should override
+   * this. The default calls getNode for each.
+   *
+   * @param uris             decoded uris of the nodes to retrieve
+   * @param nodeType         Say's something about the type of node
+   * @param projection       properties that will be requested
+   * @return map from uri to node - missing nodes are absent and nodes
+   *         the principal may not access map to null
+   * @throws WebdavException on error
+   */
+  public Map<String, WebdavNsNode> getNodes(
+          final Collection<String> uris,
+          final int nodeType,
+          final PropertyProjection projection) throws WebdavException {
+    final Map<String, WebdavNsNode> nodes = new HashMap<>();
+
+    for (final String uri: uris) {
+      try {
+        final WebdavNsNode node = getNode(uri, existanceMay, nodeType,
+                                          false, projection);
+
+        if ((node != null) && node.getExists()) {
+          nodes.put(uri, node);
+        }
+      } catch (final WebdavException we) {
+        if (we.getStatusCode() == HttpServletResponse.SC_FORBIDDEN) {
+          nodes.put(uri, null);
+        } else if (we.getStatusCode() != HttpServletResponse.SC_NOT_FOUND) {
+          throw we;
+        }
+      }
+    }
+
+    return nodes;
+  }
+
+  /** Returns a summary of each child of a collection for the common
+   * PROPFIND which asks only for getetag, resourcetype and getcontenttype.
+   * The response is then written from these without building nodes.
+   *
+   * <p>Return null if this can't be done for the collection, for example
+   * if it contains principals. The default always returns null.
+   *
+   * @param node             collection in question
+   * @return summaries or null to use the nodes
+   * @throws WebdavException on error
+   */
+  public Collection<WdChildSummary> getChildSummaries(
+          final WebdavNsNode node) throws WebdavException {
+    return null;
+  }
+
+  /** Returns a cursor over the immediate children of a node. The caller
+   * must close it.
+   *
+   * <p>The default wraps the result of getChildren so still holds every
+   * child. Implementations with very large collections should override
+   * this to read the children as they are asked for so that they are not
+   * all in memory at once. PROPFIND does not use it when the prefetcher
+   * is enabled.
+   *
+   * @param node             node in question
+   * @param filterGetter     gets a filter - may be null
+   * @param projection       properties that will be requested
+   * @return cursor over WebdavNsNode children
+   * @throws WebdavException on error
+   */
+  public WdChildCursor getChildCursor(
+          final WebdavNsNode node,
+          final Supplier<Object> filterGetter,
+          final PropertyProjection projection) throws WebdavException {
+    return WdChildCursor.forCollection(getChildren(node, filterGetter,
+                                                   projection));
+  }
+
   /** Returns the parent of a node.
    *
    * @param node             node in question
@@ -762,7 +935,8 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
 
       String[] contentTypePars = null;
       final String contentType = req.getContentType();
-      final boolean returnRep = Headers.returnRepresentation(req);
+      final boolean returnRep =
+              WebdavRequestContext.get(req).getReturnRepresentation();
       Content c = null;
 
       if (contentType != null) {
@@ -1094,6 +1268,26 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
                                                int limit,
                                                boolean recurse) throws WebdavException;
 
+  /** The projection says which properties will be asked for on the nodes
+   * in the report. The default ignores it.
+   *
+   * @param path
+   * @param token
+   * @param limit - negative for no limit on result set size
+   * @param recurse
+   * @param projection properties that will be requested
+   * @return report
+   * @throws WebdavException on error
+   */
+  public WdSynchReport getSynchReport(final String path,
+                                      final String token,
+                                      final int limit,
+                                      final boolean recurse,
+                                      final PropertyProjection projection)
+          throws WebdavException {
+    return getSynchReport(path, token, limit, recurse);
+  }
+
   /** Used to match tokens in If header
    * @param path
    * @return sync token or null
@@ -1284,7 +1478,7 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
 
       if (xml.getNameSpace(ns) == null) {
         try {
-          xml.addNs(new NameSpace(ns, null), false);
+          Utf8XmlEmit.addNamespace(xml, ns, null, false);
         } catch (final IOException e) {
           throw new WebdavException(e);
         }
@@ -1325,15 +1519,118 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
     return wd;
   }
 
-  /** Properties we can process */
-  private static final QName[] knownProperties = {
-    //    WebdavTags.lockdiscovery,
-    //    WebdavTags.source,
-    //    WebdavTags.supportedlock,
-    //    WebdavTags.aclRestrictions,
-    //    WebdavTags.inheritedAclSet,
-    WebdavTags.principalCollectionSet,
-  };
+  /* True for classes which use the default DOM property parsing and so
+   * may use the pull parser instead.
+   */
+  private static final ClassValue<Boolean> defaultPropParsing =
+          new ClassValue<Boolean>() {
+            @Override
+            protected Boolean computeValue(final Class<?> cl) {
+              try {
+                return (cl.getMethod("parseProp", Node.class)
+                          .getDeclaringClass() == WebdavNsIntf.class) &&
+                        (cl.getMethod("makeProp", Element.class)
+                           .getDeclaringClass() == WebdavNsIntf.class);
+              } catch (final Throwable t) {
+                return false;
+              }
+            }
+          };
+
+  /** PROPFIND may fetch the children of collections on other threads
+   * while the response is being written. Only allowed if this returns
+   * true, which means getChildren may be called concurrently with other
+   * calls for the same request.
+   *
+   * @return true if getChildren may be called from other threads
+   */
+  public boolean getConcurrentGetChildren() {
+    return false;
+  }
+
+  /** Property lists may be parsed with a pull parser rather than by
+   * building a DOM. This is the case unless the namespace specific class
+   * overrides parseProp(Node) or makeProp(Element), in which case those
+   * are called with the DOM.
+   *
+   * @return true if parseProp(XMLStreamReader) may be used.
+   */
+  public boolean getPullParseProps() {
+    return defaultPropParsing.get(getClass());
+  }
+
+  /** Parse a DAV:prop list of property names in any namespace using a pull
+   * parser. On entry the parser is positioned at the start of the prop
+   * element, on return at its end.
+   *
+   * @param rdr pull parser
+   * @return Collection
+   * @throws WebdavException on error
+   */
+  public List<WebdavProperty> parseProp(final XMLStreamReader rdr) throws WebdavException {
+    final List<WebdavProperty> props = new ArrayList<>();
+
+    while (XmlRequestParser.nextElement(rdr)) {
+      final QName tag = XmlRequestParser.getName(rdr);
+      final String ns = tag.getNamespaceURI();
+
+      if (xml.getNameSpace(ns) == null) {
+        try {
+          Utf8XmlEmit.addNamespace(xml, ns, null, false);
+        } catch (final IOException e) {
+          throw new WebdavException(e);
+        }
+      }
+
+      final WebdavProperty prop = new WebdavProperty(tag, null);
+
+      for (int i = 0; i < rdr.getAttributeCount(); i++) {
+        prop.addAttr(rdr.getAttributeLocalName(i),
+                     rdr.getAttributeValue(i));
+      }
+
+      XmlRequestParser.skipElement(rdr);
+
+      if (debug) {
+        debug("prop: " + prop.getTag());
+      }
+
+      props.add(prop);
+    }
+
+    return props;
+  }
+
+  /** Properties we can process. lockdiscovery, source, supportedlock,
+   * acl-restrictions and inherited-acl-set are not supported. */
+  private static final PropertyRegistry<WebdavNsNode> properties =
+          new PropertyRegistry<>();
+
+  static {
+    properties.add(WebdavTags.principalCollectionSet, false,
+                   (node, tag, intf, allProp) -> {
+      // access 5.7
+      final XmlEmit xml = intf.getXmlEmit();
+
+      xml.openTag(WebdavTags.principalCollectionSet);
+
+      for (final String s: intf.getPrincipalCollectionSet(node.getUri())) {
+        xml.property(WebdavTags.href, s);
+      }
+
+      xml.closeTag(WebdavTags.principalCollectionSet);
+      return true;
+    });
+  }
+
+  /** The properties handled here rather than by the node. Subclasses may
+   * create their own registry from this one.
+   *
+   * @return registry of properties
+   */
+  public static PropertyRegistry<WebdavNsNode> getPropertyRegistry() {
+    return properties;
+  }
 
   /** Return true if a call to generatePropValue will return a value.
    *
@@ -1345,10 +1642,8 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
                                final WebdavProperty pr) {
     final QName tag = pr.getTag();
 
-    for (final QName knownProperty : knownProperties) {
-      if (tag.equals(knownProperty)) {
-        return true;
-      }
+    if (properties.isKnown(tag)) {
+      return true;
     }
 
     /* Try the node for a value */
@@ -1356,83 +1651,82 @@ public abstract class WebdavNsIntf extends Logged implements Serializable {
     return node.knownProperty(tag);
   }
 
-  /** Generate a response for a single webdav property. This should be overrriden
-   * to handle other namespaces.
+  /** Whether the content of a resource is needed to generate the
+   * property. Only registered properties which say so need it - nodes
+   * load content for other properties themselves as before. Subclasses
+   * may override this to have the content loaded up front.
    *
-   * @param node
-   * @param pr
-   * @param allProp   true if we're doing allprop
-   * @return boolean false for unknown (or unset)
-   * @throws WebdavException on error
+   * @param tag name of property
+   * @return true if the content is needed
    */
-  public boolean generatePropValue(final WebdavNsNode node,
-                                   final WebdavProperty pr,
-                                   final boolean allProp) throws WebdavException {
-    QName tag = pr.getTag();
-    String ns = tag.getNamespaceURI();
-
-    try {
-      /* Deal with webdav properties */
-      if (!ns.equals(WebdavTags.namespace)) {
-        // Not ours
-        //xml.emptyTag(tag);
-        return false;
-      }
+  public boolean needsContent(final QName tag) {
+    WebdavNsNode.PropertyTagEntry pte = properties.getTagEntry(tag);
 
-      if (tag.equals(WebdavTags.lockdiscovery)) {
-        // dav 13.8
-        //xml.emptyTag(tag);
-        return false;
-      }
-
-      if (tag.equals(WebdavTags.source)) {
-        // dav 13.10
-        //xml.emptyTag(tag);
-        return false;
-      }
+    if (pte == null) {
+      pte = WebdavNsNode.getPropertyRegistry().getTagEntry(tag);
+    }
 
-      if (tag.equals(WebdavTags.supportedlock)) {
-        // dav 13.11
-        //xml.emptyTag(tag);
-        return false;
-      }
+    return (pte != null) && pte.needsContent;
+  }
 
-      if (tag.equals(WebdavTags.aclRestrictions)) {
-        // access 5.5
-        return false;
-      }
+  /**
+   * @param props requested properties - null for all
+   * @return true if any of them need the content
+   */
+  public boolean needsContent(final Collection<WebdavProperty> props) {
+    if (props == null) {
+      return allPropNeedsContent(properties.getTagEntries()) ||
+              allPropNeedsContent(WebdavNsNode.getPropertyRegistry()
+                                              .getTagEntries());
+    }
 
-      if (tag.equals(WebdavTags.inheritedAclSet)) {
-        // access 5.6
-        return false;
+    for (final WebdavProperty pr: props) {
+      if (needsContent(pr.getTag())) {
+        return true;
       }
+    }
 
-      if (tag.equals(WebdavTags.principalCollectionSet)) {
-        // access 5.7
-        xml.openTag(WebdavTags.principalCollectionSet);
-
-        for (String s: getPrincipalCollectionSet(node.getUri())) {
-          xml.property(WebdavTags.href, s);
-        }
+    return false;
+  }
 
-        xml.closeTag(WebdavTags.principalCollectionSet);
+  private static boolean allPropNeedsContent(
+          final Collection<WebdavNsNode.PropertyTagEntry> entries) {
+    for (final WebdavNsNode.PropertyTagEntry pte: entries) {
+      if (pte.inPropAll && pte.needsContent) {
         return true;
       }
+    }
 
-      /* Try the node for a value */
+    return false;
+  }
 
-      if (node.generatePropertyValue(tag, this, allProp)) {
-        // Generated by node
-        return true;
-      }
+  /** Generate a response for a single webdav property. This should be overrriden
+   * to handle other namespaces.
+   *
+   * @param node
+   * @param pr
+   * @param allProp   true if we're doing allprop
+   * @return boolean false for unknown (or unset)
+   * @throws WebdavException on error
+   */
+  public boolean generatePropValue(final WebdavNsNode node,
+                                   final WebdavProperty pr,
+                                   final boolean allProp) throws WebdavException {
+    final QName tag = pr.getTag();
 
-      // Not known
+    /* Deal with webdav properties */
+    if (!tag.getNamespaceURI().equals(WebdavTags.namespace)) {
+      // Not ours
       return false;
-    } catch (WebdavException wde) {
-      throw wde;
-    } catch (Throwable t) {
-      throw new WebdavException(t);
     }
+
+    if (properties.isKnown(tag)) {
+      return properties.generate(node, tag, this, allProp);
+    }
+
+    /* Try the node for a value */
+
+    return node.generatePropertyValue(tag, this, allProp);
   }
 
   /** Return the complete URL describing the location of the object
@@ -26,6 +26,8 @@ import org.bedework.util.misc.Util;
 import org.bedework.util.xml.XmlEmit;
 import org.bedework.util.xml.XmlUtil;
 import org.bedework.util.xml.tagdefs.WebdavTags;
+import org.bedework.webdav.servlet.common.MultigetReport;
+import org.bedework.webdav.servlet.common.WebdavStats;
 import org.bedework.webdav.servlet.shared.WebdavNsIntf.Content;
 
 import org.apache.log4j.Logger;
@@ -39,6 +41,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 import javax.servlet.http.HttpServletResponse;
@@ -95,8 +98,8 @@ public abstract class WebdavNsNode implements Serializable {
    */
   protected int status = HttpServletResponse.SC_OK;
 
-  private final static HashMap<QName, PropertyTagEntry> propertyNames =
-    new HashMap<>();
+  private final static PropertyRegistry<WebdavNsNode> properties =
+          new PropertyRegistry<>();
 
   private final static Collection<QName> supportedReports = new ArrayList<>();
 
@@ -106,6 +109,8 @@ public abstract class WebdavNsNode implements Serializable {
     public QName tag;
     /** */
     public boolean inPropAll = false;
+    /** true if generating the value requires the content */
+    public boolean needsContent;
 
     /**
      * @param tag a QName
@@ -122,30 +127,222 @@ public abstract class WebdavNsNode implements Serializable {
       this.tag = tag;
       this.inPropAll = inPropAll;
     }
+
+    /**
+     * @param tag a QName
+     * @param inPropAll
+     * @param needsContent true if the value requires the content
+     */
+    public PropertyTagEntry(final QName tag,
+                            final boolean inPropAll,
+                            final boolean needsContent) {
+      this.tag = tag;
+      this.inPropAll = inPropAll;
+      this.needsContent = needsContent;
+    }
   }
 
   static {
-    addPropEntry(propertyNames, WebdavTags.acl);
-    // addPropEntry(propertyNames, WebdavTags.aclRestrictons, false);
-    addPropEntry(propertyNames, WebdavTags.addMember, false);
-    addPropEntry(propertyNames, WebdavTags.creationdate, true);
-    addPropEntry(propertyNames, WebdavTags.currentUserPrincipal, true);
-    addPropEntry(propertyNames, WebdavTags.currentUserPrivilegeSet);
-    addPropEntry(propertyNames, WebdavTags.displayname, true);
-    addPropEntry(propertyNames, WebdavTags.getcontentlanguage, true);
-    addPropEntry(propertyNames, WebdavTags.getcontentlength, true);
-    addPropEntry(propertyNames, WebdavTags.getcontenttype, true);
-    addPropEntry(propertyNames, WebdavTags.getetag, true);
-    addPropEntry(propertyNames, WebdavTags.getlastmodified, true);
-    //addPropEntry(propertyNames, WebdavTags.group, false);
-    //addPropEntry(propertyNames, WebdavTags.inheritedAclSet, false);
-    addPropEntry(propertyNames, WebdavTags.owner);
-    //addPropEntry(propertyNames, WebdavTags.principalCollectionSet, false);
-    addPropEntry(propertyNames, WebdavTags.principalURL);
-    addPropEntry(propertyNames, WebdavTags.resourcetype, true);
-    addPropEntry(propertyNames, WebdavTags.supportedReportSet);
-    addPropEntry(propertyNames, WebdavTags.supportedPrivilegeSet);
-    addPropEntry(propertyNames, WebdavTags.syncToken);
+    properties.add(WebdavTags.acl, false, (node, tag, intf, allProp) -> {
+      // access 5.4
+      intf.emitAcl(node);
+      return true;
+    });
+
+    properties.add(WebdavTags.addMember, false, (node, tag, intf, allProp) -> {
+      final XmlEmit xml = intf.getXmlEmit();
+
+      xml.openTag(tag);
+
+      node.generateHref(xml,
+                        Util.buildPath(false, node.uri, "/",
+                                       intf.getAddMemberSuffix()));
+
+      xml.closeTag(tag);
+
+      return true;
+    });
+
+    properties.add(WebdavTags.creationdate, true, (node, tag, intf, allProp) -> {
+      // dav 13.1
+      final String val = node.getCreDate();
+      if (val == null) {
+        return true;
+      }
+
+      intf.getXmlEmit().property(tag, val);
+      return true;
+    });
+
+    properties.add(WebdavTags.currentUserPrincipal, true, (node, tag, intf, allProp) -> {
+      // draft-sanchez-webdav-current-principal-01
+      final XmlEmit xml = intf.getXmlEmit();
+
+      xml.openTag(tag);
+      if (intf.getAccount() == null) {
+        xml.emptyTag(WebdavTags.unauthenticated);
+      } else {
+        String href = intf.makeUserHref(intf.getAccount());
+        if (!href.endsWith("/")) {
+          href += "/";
+        }
+        xml.property(WebdavTags.href, href);
+      }
+      xml.closeTag(tag);
+
+      return true;
+    });
+
+    properties.add(WebdavTags.currentUserPrivilegeSet, false, (node, tag, intf, allProp) -> {
+      // access 5.3
+      final XmlEmit xml = intf.getXmlEmit();
+      final CurrentAccess ca = node.requestValue("currentAccess",
+                                                 node::getCurrentAccess);
+      if (ca == null) {
+        xml.emptyTag(tag);
+        return true;
+      }
+
+      final PrivilegeSet ps = ca.getPrivileges();
+      final char[] privileges = ps.getPrivileges();
+
+      AccessXmlUtil.emitCurrentPrivSet(xml,
+                                       intf.getAccessUtil().getPrivTags(),
+                                       privileges);
+
+      return true;
+    });
+
+    properties.add(WebdavTags.displayname, true, (node, tag, intf, allProp) -> {
+      // dav 13.2
+      intf.getXmlEmit().property(tag, node.getDisplayname());
+
+      return true;
+    });
+
+    properties.add(WebdavTags.getcontentlanguage, true, (node, tag, intf, allProp) -> {
+      // dav 13.3
+      if (!node.getAllowsGet()) {
+        return true;
+      }
+      intf.getXmlEmit().property(tag, String.valueOf(node.getContentLang()));
+      return true;
+    });
+
+    properties.add(WebdavTags.getcontentlength, true, (node, tag, intf, allProp) -> {
+      // dav 13.4
+      if (!node.getAllowsGet()) {
+        intf.getXmlEmit().property(tag, "0");
+        return true;
+      }
+      intf.getXmlEmit().property(tag, String.valueOf(node.getContentLen()));
+      return true;
+    });
+
+    properties.add(WebdavTags.getcontenttype, true, (node, tag, intf, allProp) -> {
+      // dav 13.5
+      if (!node.getAllowsGet()) {
+        return true;
+      }
+
+      final String val = node.getContentType();
+      if (val == null) {
+        return true;
+      }
+
+      intf.getXmlEmit().property(tag, val);
+      return true;
+    });
+
+    properties.add(WebdavTags.getetag, true, (node, tag, intf, allProp) -> {
+      // dav 13.6
+      intf.getXmlEmit().property(tag, node.getEtagValue(true));
+      return true;
+    });
+
+    properties.add(WebdavTags.getlastmodified, true, (node, tag, intf, allProp) -> {
+      // dav 13.7
+      final String val = node.getLastmodDate();
+      if (val == null) {
+        return true;
+      }
+
+      intf.getXmlEmit().property(tag, val);
+      return true;
+    });
+
+    properties.add(WebdavTags.owner, false, (node, tag, intf, allProp) -> {
+      // access 5.1
+      final XmlEmit xml = intf.getXmlEmit();
+
+      xml.openTag(tag);
+      final String href = node.requestValue("ownerHref", () -> {
+        final String h = intf.makeUserHref(node.getOwner().getPrincipalRef());
+        if (!h.endsWith("/")) {
+          return h + "/";
+        }
+
+        return h;
+      });
+      xml.property(WebdavTags.href, href);
+      xml.closeTag(tag);
+
+      return true;
+    });
+
+    properties.add(WebdavTags.principalURL, false, (node, tag, intf, allProp) -> {
+      final XmlEmit xml = intf.getXmlEmit();
+
+      xml.openTag(tag);
+      node.generateUrl(xml, WebdavTags.href, node.getEncodedUri(),
+                       node.getExists());
+      xml.closeTag(tag);
+
+      return true;
+    });
+
+    properties.add(WebdavTags.resourcetype, true, (node, tag, intf, allProp) -> {
+      // dav 13.9
+      final XmlEmit xml = intf.getXmlEmit();
+
+      if (!node.isPrincipal() && !node.isCollection()) {
+        xml.emptyTag(tag);
+        return true;
+      }
+
+      xml.openTag(tag);
+
+      if (node.isPrincipal()) {
+        xml.emptyTag(WebdavTags.principal);
+      }
+
+      if (node.isCollection()) {
+        xml.emptyTag(WebdavTags.collection);
+      }
+
+      xml.closeTag(tag);
+      return true;
+    });
+
+    properties.add(WebdavTags.supportedReportSet, false, (node, tag, intf, allProp) -> {
+      // versioning
+      intf.emitSupportedReportSet(node);
+      return true;
+    });
+
+    properties.add(WebdavTags.supportedPrivilegeSet, false, (node, tag, intf, allProp) -> {
+      // access 5.2
+      intf.getAccessUtil().emitSupportedPrivSet();
+      return true;
+    });
+
+    properties.add(WebdavTags.syncToken, false, (node, tag, intf, allProp) -> {
+      if (!node.sysAllowsSyncReport()) {
+        return false;
+      }
+      intf.getXmlEmit().property(tag, node.getSyncToken());
+      return true;
+    });
 
     /* Supported reports */
 
@@ -153,6 +350,7 @@ public abstract class WebdavNsNode implements Serializable {
     supportedReports.add(WebdavTags.aclPrincipalPropSet);     // Acl
     supportedReports.add(WebdavTags.principalMatch);          // Acl
     supportedReports.add(WebdavTags.principalPropertySearch); // Acl
+    supportedReports.add(MultigetReport.resourceMultiget);    // Multiget
   }
 
   /* ....................................................................
@@ -167,6 +365,40 @@ public abstract class WebdavNsNode implements Serializable {
 
   protected UrlHandler urlHandler;
 
+  /* ....................................................................
+   *                   Request values
+   * .................................................................... */
+
+  /** Name of counter for request values computed */
+  public static final String valuesComputedCounter = "nodeValues.computed";
+
+  /** Name of counter for request values reused */
+  public static final String valuesReusedCounter = "nodeValues.reused";
+
+  /** Computes a value for requestValue
+   *
+   * @param <T> type of value
+   */
+  public interface ValueSource<T> {
+    /**
+     * @return the value - may be null
+     * @throws WebdavException on error
+     */
+    T get() throws WebdavException;
+  }
+
+  /* Each request gets an id unique across threads so that a node which
+     outlives its request never hands its values to a later one. */
+  private static final AtomicLong requestIds = new AtomicLong();
+
+  /* Id of the request on this thread - 0 for none */
+  private static final ThreadLocal<long[]> currentRequest =
+          ThreadLocal.withInitial(() -> new long[1]);
+
+  private transient HashMap<String, Object> requestValues;
+
+  private transient long valuesRequest;
+
   /** Constructor
    *
    * @param sysi system interface
@@ -187,6 +419,57 @@ public abstract class WebdavNsNode implements Serializable {
     debug = getLogger().isDebugEnabled();
   }
 
+  /** Called at the start of each request. Values saved by requestValue
+   * are kept until endRequest.
+   */
+  public static void startRequest() {
+    currentRequest.get()[0] = requestIds.incrementAndGet();
+  }
+
+  /** Called at the end of each request to discard the values saved by
+   * requestValue on this thread.
+   */
+  public static void endRequest() {
+    currentRequest.get()[0] = 0;
+  }
+
+  /** Return a value computed earlier in this request or compute and save
+   * it. Used for values which may be asked for more than once while
+   * building a response. Outside a request the value is computed each
+   * time.
+   *
+   * @param <T> type of value
+   * @param key identifies the value within this node
+   * @param source computes the value
+   * @return the value - may be null
+   * @throws WebdavException on error
+   */
+  @SuppressWarnings("unchecked")
+  protected <T> T requestValue(final String key,
+                               final ValueSource<T> source) throws WebdavException {
+    final long id = currentRequest.get()[0];
+
+    if (id == 0) {
+      WebdavStats.inc(valuesComputedCounter);
+      return source.get();
+    }
+
+    if ((requestValues == null) || (valuesRequest != id)) {
+      requestValues = new HashMap<>();
+      valuesRequest = id;
+    } else if (requestValues.containsKey(key)) {
+      WebdavStats.inc(valuesReusedCounter);
+      return (T)requestValues.get(key);
+    }
+
+    final T val = source.get();
+
+    requestValues.put(key, val);
+    WebdavStats.inc(valuesComputedCounter);
+
+    return val;
+  }
+
   /* ====================================================================
    *                   Abstract methods
    * ==================================================================== */
@@ -434,13 +717,22 @@ public abstract class WebdavNsNode implements Serializable {
     }
   }
 
+  /** The properties handled by this class. Subclasses may create their
+   * own registry from this one.
+   *
+   * @return registry of properties
+   */
+  public static PropertyRegistry<WebdavNsNode> getPropertyRegistry() {
+    return properties;
+  }
+
   /** Return true if a call to generatePropertyValue will return a value.
    *
    * @param tag
    * @return boolean
    */
   public boolean knownProperty(final QName tag) {
-    return propertyNames.get(tag) != null;
+    return properties.isKnown(tag);
   }
 
   /** Emit the property indicated by the tag.
@@ -454,209 +746,7 @@ public abstract class WebdavNsNode implements Serializable {
   public boolean generatePropertyValue(final QName tag,
                                        final WebdavNsIntf intf,
                                        final boolean allProp) throws WebdavException {
-    final String ns = tag.getNamespaceURI();
-    final XmlEmit xml = intf.getXmlEmit();
-
-    if (!ns.equals(WebdavTags.namespace)) {
-      // Not ours
-
-      return false;
-    }
-
-    try {
-      if (tag.equals(WebdavTags.acl)) {
-        // access 5.4
-        intf.emitAcl(this);
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.addMember)) {
-        xml.openTag(tag);
-
-        generateHref(xml,
-                     Util.buildPath(false, uri, "/",
-                                    intf.getAddMemberSuffix()));
-
-        xml.closeTag(tag);
-
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.creationdate)) {
-        // dav 13.1
-
-        final String val = getCreDate();
-        if (val == null) {
-          return true;
-        }
-
-        xml.property(tag, val);
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.currentUserPrincipal)) {
-        // draft-sanchez-webdav-current-principal-01
-
-        xml.openTag(tag);
-        if (intf.getAccount() == null) {
-          xml.emptyTag(WebdavTags.unauthenticated);
-        } else {
-          String href = intf.makeUserHref(intf.getAccount());
-          if (!href.endsWith("/")) {
-            href += "/";
-          }
-          xml.property(WebdavTags.href, href);
-        }
-        xml.closeTag(tag);
-
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.currentUserPrivilegeSet)) {
-        // access 5.3
-        CurrentAccess ca = getCurrentAccess();
-        if (ca == null) {
-          xml.emptyTag(tag);
-          return true;
-        }
-
-        PrivilegeSet ps = ca.getPrivileges();
-        char[] privileges = ps.getPrivileges();
-
-        AccessXmlUtil.emitCurrentPrivSet(xml,
-                                         intf.getAccessUtil().getPrivTags(),
-                                         privileges);
-
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.displayname)) {
-        // dav 13.2
-        xml.property(tag, getDisplayname());
-
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.getcontentlanguage)) {
-        // dav 13.3
-        if (!getAllowsGet()) {
-          return true;
-        }
-        xml.property(tag, String.valueOf(getContentLang()));
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.getcontentlength)) {
-        // dav 13.4
-        if (!getAllowsGet()) {
-          xml.property(tag, "0");
-          return true;
-        }
-        xml.property(tag, String.valueOf(getContentLen()));
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.getcontenttype)) {
-        // dav 13.5
-        if (!getAllowsGet()) {
-          return true;
-        }
-
-        String val = getContentType();
-        if (val == null) {
-          return true;
-        }
-
-        xml.property(tag, val);
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.getetag)) {
-        // dav 13.6
-        xml.property(tag, getEtagValue(true));
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.getlastmodified)) {
-        // dav 13.7
-        String val = getLastmodDate();
-        if (val == null) {
-          return true;
-        }
-
-        xml.property(tag, val);
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.owner)) {
-        // access 5.1
-        xml.openTag(tag);
-        String href = intf.makeUserHref(getOwner().getPrincipalRef());
-        if (!href.endsWith("/")) {
-          href += "/";
-        }
-        xml.property(WebdavTags.href, href);
-        xml.closeTag(tag);
-
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.principalURL)) {
-        xml.openTag(tag);
-        generateUrl(xml, WebdavTags.href, getEncodedUri(), getExists());
-        xml.closeTag(tag);
-
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.resourcetype)) {
-        // dav 13.9
-        if (!isPrincipal() && !isCollection()) {
-          xml.emptyTag(tag);
-          return true;
-        }
-
-        xml.openTag(tag);
-
-        if (isPrincipal()) {
-          xml.emptyTag(WebdavTags.principal);
-        }
-
-        if (isCollection()) {
-          xml.emptyTag(WebdavTags.collection);
-        }
-
-        xml.closeTag(tag);
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.supportedPrivilegeSet)) {
-        // access 5.2
-        intf.getAccessUtil().emitSupportedPrivSet();
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.supportedReportSet)) {
-        // versioning
-        intf.emitSupportedReportSet(this);
-        return true;
-      }
-
-      if (tag.equals(WebdavTags.syncToken)) {
-        if (!wdSysIntf.allowsSyncReport(getCollection(false))) {
-          return false;
-        }
-        xml.property(tag, getSyncToken());
-        return true;
-      }
-
-      // Not known
-      return false;
-    } catch (WebdavException wde) {
-      throw wde;
-    } catch (Throwable t) {
-      throw new WebdavException(t);
-    }
+    return properties.generate(this, tag, intf, allProp);
   }
 
   /** This method is called before each setter/getter takes any action.
@@ -687,12 +777,12 @@ public abstract class WebdavNsNode implements Serializable {
    */
   public Collection<PropertyTagEntry> getPropertyNames() throws WebdavException {
     if (!isPrincipal()) {
-      return propertyNames.values();
+      return properties.getTagEntries();
     }
 
     Collection<PropertyTagEntry> res = new ArrayList<PropertyTagEntry>();
 
-    res.addAll(propertyNames.values());
+    res.addAll(properties.getTagEntries());
 
     return res;
   }
@@ -706,13 +796,25 @@ public abstract class WebdavNsNode implements Serializable {
     final Collection<QName> res = new ArrayList<>();
     res.addAll(supportedReports);
 
-    if (wdSysIntf.allowsSyncReport(getCollection(false))) {
+    if (sysAllowsSyncReport()) {
       res.add(WebdavTags.syncCollection);
     }
 
     return res;
   }
 
+  /** Whether the system allows a sync report on the collection. Saved
+   * for the request as it is needed for more than one property.
+   *
+   * @return true if a sync report is allowed
+   * @throws WebdavException
+   */
+  private boolean sysAllowsSyncReport() throws WebdavException {
+    return requestValue("allowsSyncReport",
+                        () -> wdSysIntf.allowsSyncReport(
+                                getCollection(false)));
+  }
+
   /**
    * @param val  boolean true if node exists
    * @throws WebdavException
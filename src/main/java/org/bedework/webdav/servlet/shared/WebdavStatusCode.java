@@ -33,10 +33,14 @@ public class WebdavStatusCode {
   /** */
   public final static int SC_FAILED_DEPENDENCY = 424;
 
+  /** Server limits exceeded */
+  public final static int SC_INSUFFICIENT_STORAGE = 507;
+
   private final static HashMap<Integer, String> msgtext = new HashMap<Integer, String>();
 
   static {
     addmsg(SC_MULTI_STATUS, "Multi-Status");
+    addmsg(SC_INSUFFICIENT_STORAGE, "Insufficient Storage");
 
     // These must be predefined somewhere?
     addmsg(HttpServletResponse.SC_ACCEPTED, "accepted");